@@ -1,7 +1,9 @@
 import java.util.Scanner;  // Import the Scanner class
+// io buffers its output, so it is flushed before printing anything else
 public class BoardBase{
 
     public static int[] playerTurn(int player){
+        io.flush();
         System.out.print("Player " + player + " turn!");
         System.out.print(" Enter the row(0-2): ");
         Scanner sc = new Scanner(System.in);
@@ -14,6 +16,7 @@ public class BoardBase{
         return g;
     }
     public static void printBoard(int[] row0, int[] row1, int[] row2){
+        io.flush();
         System.out.println();
         System.out.println(row0[0]+"|"+row0[1]+"|"+row0[2]);
         System.out.println("- - -");
@@ -25,14 +28,17 @@ public class BoardBase{
     }
 
     public static void placeTaken(){
+        io.flush();
         System.out.println("That place is taken");
     }
 
     public static void wrongMove(){
+        io.flush();
         System.out.println("That location is invalid");
     }
 
     public static void printWinner(int win){
+        io.flush();
         if (win == 0)
            System.out.println("Both of you played to a tie.");
         else {
@@ -0,0 +1,118 @@
+import java.io.*;
+import java.util.*;
+
+
+public class JmmProfiler {
+
+	static final int HOT_BLOCKS = 20;
+
+	static String source;
+	static String[] methods;
+	static String profileFile;
+	static long[] counts;
+	static boolean reported;
+
+	static final Thread reporter = new Thread(JmmProfiler::report);
+
+	// Called by the static initializer of a class compiled with --profile, which counts into the returned array
+	public static long[] register(String sourceName, String[] methodCounters, String file) {
+		int size = 0;
+
+		for (String method : methodCounters)
+			size += method.split("\n", -1).length - 1;
+
+		source = sourceName;
+		methods = methodCounters;
+		profileFile = file;
+		counts = new long[size];
+
+		Runtime.getRuntime().addShutdownHook(reporter);
+
+		return counts;
+	}
+
+	static synchronized void report() {
+		if (reported || counts == null)
+			return;
+
+		reported = true;
+
+		// Every method starts with its entry counter, followed by the counters of its blocks
+		List<String> calls = new ArrayList<>();
+		List<long[]> callCounts = new ArrayList<>();
+		List<String> blocks = new ArrayList<>();
+		List<long[]> blockCounts = new ArrayList<>();
+		StringBuilder header = new StringBuilder("# method\tblock\tline\tcount, of " + source + "\n");
+		StringBuilder profile = new StringBuilder();
+		long total = 0;
+		int counter = 0;
+
+		for (String method : methods) {
+			String[] lines = method.split("\n", -1);
+			// The first line has the name of the method and the fingerprint of its blocks
+			String name = lines[0].substring(0, lines[0].indexOf(' '));
+			header.append("# fingerprint\t").append(name).append('\t').append(lines[0].substring(name.length() + 1)).append('\n');
+
+			for (int i = 1; i < lines.length; i++, counter++) {
+				int separator = lines[i].indexOf(' ');
+				String line = lines[i].substring(0, separator);
+				String block = lines[i].substring(separator + 1);
+				String location = source + ":" + (line.equals("-1") ? "?" : line);
+
+				profile.append(name).append('\t').append(block).append('\t').append(line).append('\t').append(counts[counter]).append('\n');
+
+				if (i == 1) {
+					calls.add(String.format("%s (%s)", name, location));
+					callCounts.add(new long[]{counts[counter], calls.size() - 1});
+				} else {
+					blocks.add(String.format("%-20s %s %s", location, name, block).trim());
+					blockCounts.add(new long[]{counts[counter], blocks.size() - 1});
+					total += counts[counter];
+				}
+			}
+		}
+
+		Comparator<long[]> hottest = (a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0]) : Long.compare(a[1], b[1]);
+		callCounts.sort(hottest);
+		blockCounts.sort(hottest);
+
+		PrintStream err = System.err;
+		err.println();
+		err.println("Profile of " + source + ", " + total + " blocks executed");
+		err.println("Method calls:");
+
+		for (long[] call : callCounts)
+			if (call[0] > 0)
+				err.printf("%14d  %s%n", call[0], calls.get((int) call[1]));
+
+		err.println("Hottest blocks:");
+
+		for (int i = 0; i < Math.min(HOT_BLOCKS, blockCounts.size()) && blockCounts.get(i)[0] > 0; i++) {
+			long[] block = blockCounts.get(i);
+			err.printf("%14d %6.2f%%  %s%n", block[0], 100.0 * block[0] / total, blocks.get((int) block[1]));
+		}
+
+		if (profileFile != null) {
+			try (Writer writer = new FileWriter(profileFile)) {
+				writer.write(header.toString());
+				writer.write(profile.toString());
+				err.println("Profile written to " + profileFile);
+			} catch (IOException e) {
+				err.println("Could not write profile to " + profileFile + ": " + e.getMessage());
+			}
+		}
+
+		err.flush();
+	}
+
+	// Programs run inside another JVM end before it does, the runner calls this instead of waiting for the exit
+	static void close() {
+		report();
+
+		try {
+			Runtime.getRuntime().removeShutdownHook(reporter);
+		} catch (IllegalStateException e) {
+			// Already exiting, the report was printed once
+		}
+	}
+}
@@ -1,102 +1,220 @@
 import java.io.*;
-import java.lang.*;
-import java.util.*;
 
 
 public class io {
 
-    // buffer to emulate the buffer of the keyboard
-	static Vector Buffer = new Vector();
-	static boolean init;
+	// Output is kept here and written to System.out when full, before reading and at exit. On a terminal it is also
+	// written at the end of every line, so the output of a long run shows as it goes. Helpers that print to System.out
+	// themselves, like ioPlus, flush it first so their output stays in order
+	static final byte[] out = new byte[8192];
+	static int outSize;
+	static final boolean lineBuffered = System.console() != null;
 
+	// Input is read in blocks, numbers are parsed straight from the bytes
+	static final byte[] in = new byte[8192];
+	static int inPosition;
+	static int inSize;
+
+	static final byte[] digits = new byte[11];
+	static final byte[] newLine = System.lineSeparator().getBytes();
+	static final byte[] trueBytes = "true".getBytes();
+	static final byte[] falseBytes = "false".getBytes();
+	static final byte[] nullBytes = "null".getBytes();
+
+	static final Thread flusher = new Thread(io::flush);
+
+	static {
+		Runtime.getRuntime().addShutdownHook(flusher);
+	}
+
+	// Numbers are separated by any whitespace, blank lines are skipped and the end of the input reads as 0
 	final static int read() {
-		int a = 0;
+		int c = next();
 
-		if(Buffer.size()==0) {
-			init = true;
+		while (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f')
+			c = next();
 
+		if (c < 0)
+			return 0;
 
-				BufferedReader teclado = new BufferedReader(new InputStreamReader(System.in));
-				String line;
-	try {
-				if((line=teclado.readLine()) != null)
-				{
+		boolean negative = c == '-';
+		int start = c;
 
-    				String[] tokens = line.split("\\s");
+		if (c == '-' || c == '+')
+			c = next();
 
-     				for (int i=0; i<tokens.length; i++) {
-         				//System.out.println(tokens[i]);
+		// Accumulated as a negative number, which also fits Integer.MIN_VALUE
+		int value = 0;
+		int length = 0;
 
-						int value=Integer.parseInt(tokens[i]);
+		while (c >= '0' && c <= '9') {
+			int digit = c - '0';
 
-						//System.out.println("valor lido: "+value);
+			if (value < (Integer.MIN_VALUE + digit) / 10)
+				throw new NumberFormatException("Number out of range");
 
-						if(!init) {
-							Buffer.addElement(Integer.valueOf(value));
-						} else {
-							a = value;
-							init = false;
-						}
-						}
-						}
-						} catch (java.io.IOException e) {
-			System.out.println(e);
-			System.exit(1);
+			value = value * 10 - digit;
+			length++;
+			c = next();
 		}
 
-		} else {
-			Integer top = (Integer) Buffer.firstElement();
-			Buffer.removeElementAt(0);
-			a = top.intValue();
-		}
-		return a;
+		if (length == 0 || c >= 0 && c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != '\f')
+			throw new NumberFormatException("Invalid number starting with '" + (char) start + "'");
+
+		if (negative)
+			return value;
+
+		if (value == Integer.MIN_VALUE)
+			throw new NumberFormatException("Number out of range");
+
+		return -value;
 	}
 
-	/* final static int readln() {
-		int a=0;
-		try {
-			BufferedReader teclado = new BufferedReader(new InputStreamReader(System.in));
-			a = Integer.parseInt(teclado.readLine());
-		} catch (java.io.IOException e) {
-			System.out.println(e);
-			System.exit(1);
+	static int next() {
+		if (inPosition == inSize) {
+			// Anything printed so far may be the prompt for this input
+			flush();
+
+			try {
+				inSize = System.in.read(in, 0, in.length);
+			} catch (IOException e) {
+				// Not System.exit, programs may run inside the compiler's JVM
+				throw new UncheckedIOException(e);
+			}
+
+			inPosition = 0;
+
+			if (inSize <= 0) {
+				inSize = 0;
+				return -1;
+			}
 		}
-		return a;
-	} */
+
+		return in[inPosition++];
+	}
 
 	final static void print(String c, int a) {
-		System.out.print(c+a);
+		write(c);
+		write(a);
 	}
 
-    final static void print(int a) {
-		System.out.print(a);
+	final static void print(int a) {
+		write(a);
 	}
 
 	final static void print(String a) {
-		System.out.print(a);
+		write(a);
 	}
 
-    final static void print(boolean a) {
-		System.out.print(a);
+	final static void print(boolean a) {
+		write(a ? trueBytes : falseBytes);
 	}
 
 	final static void println() {
-		System.out.println();
+		endLine();
 	}
-	
+
 	final static void println(String c, int a) {
-		System.out.println(c+a);
+		write(c);
+		write(a);
+		endLine();
 	}
 
-    final static void println(int a) {
-		System.out.println(a);
+	final static void println(int a) {
+		write(a);
+		endLine();
 	}
 
 	final static void println(String a) {
-		System.out.println(a);
+		write(a);
+		endLine();
 	}
 
 	final static void println(boolean a) {
-		System.out.println(a);
-	}	
+		write(a ? trueBytes : falseBytes);
+		endLine();
+	}
+
+	static void write(int a) {
+		// Digits are taken from a negative number, which also fits Integer.MIN_VALUE
+		int value = a < 0 ? a : -a;
+		int position = digits.length;
+
+		do {
+			digits[--position] = (byte) ('0' - value % 10);
+			value /= 10;
+		} while (value != 0);
+
+		if (a < 0)
+			digits[--position] = '-';
+
+		write(digits, position, digits.length - position);
+	}
+
+	static void write(String a) {
+		if (a == null) {
+			write(nullBytes);
+			return;
+		}
+
+		int length = a.length();
+
+		for (int i = 0; i < length; i++) {
+			if (a.charAt(i) >= 0x80) {
+				// Only text outside ASCII needs the platform encoding
+				write(a.getBytes());
+				return;
+			}
+		}
+
+		for (int i = 0; i < length; i++) {
+			if (outSize == out.length)
+				flush();
+
+			out[outSize++] = (byte) a.charAt(i);
+		}
+	}
+
+	static void write(byte[] bytes) {
+		write(bytes, 0, bytes.length);
+	}
+
+	static void write(byte[] bytes, int offset, int length) {
+		if (length > out.length - outSize) {
+			flush();
+
+			if (length > out.length) {
+				System.out.write(bytes, offset, length);
+				return;
+			}
+		}
+
+		System.arraycopy(bytes, offset, out, outSize, length);
+		outSize += length;
+	}
+
+	static void endLine() {
+		write(newLine);
+
+		if (lineBuffered)
+			flush();
+	}
+
+	static void flush() {
+		System.out.write(out, 0, outSize);
+		System.out.flush();
+		outSize = 0;
+	}
+
+	// Programs run inside another JVM end before it does, the runner calls this instead of waiting for the exit
+	static void close() {
+		flush();
+
+		try {
+			Runtime.getRuntime().removeShutdownHook(flusher);
+		} catch (IllegalStateException e) {
+			// Already exiting, the hook flushes again
+		}
+	}
+
 }
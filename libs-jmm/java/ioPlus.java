@@ -0,0 +1,23 @@
+import java.util.Scanner;
+
+public class ioPlus {
+
+	// io buffers its output, so it is flushed before printing anything else
+	public static void printResult(int a) {
+		io.flush();
+		System.out.println("Result: " + a);
+	}
+
+	public static void printHelloWorld() {
+		io.flush();
+		System.out.println("Hello, World!");
+	}
+
+	public static int requestNumber() {
+		io.flush();
+		System.out.print("Insert number: ");
+		Scanner scanner = new Scanner(System.in);
+		int number = scanner.nextInt();
+		return number;
+	}
+}
@@ -1,95 +1,142 @@
 grammar Javamm;
 
-@header {
+@parser::header {
     package pt.up.fe.comp2023;
 }
 
+// Token types declared in the tokens block are only generated in the parser
+@lexer::header {
+    package pt.up.fe.comp2023;
+
+    import static pt.up.fe.comp2023.JavammParser.*;
+}
+
+// Keywords are lexed as identifiers and then looked up, see ID
+tokens {
+    MODIFIER, PRIMITIVE_TYPE,
+    ASSERT, BREAK, CASE, CATCH, CLASS, CONTINUE, DEFAULT, DO, ELSE, ENUM, EXTENDS, FINALLY, FOR, IF, IMPLEMENTS,
+    IMPORT, INSTANCEOF, INTERFACE, NATIVE, NEW, PACKAGE, RETURN, SUPER, SWITCH, SYNCHRONIZED, THIS, THROW, THROWS,
+    TRY, VOID, WHILE, CONST, GOTO,
+    NULL_LITERAL, BOOLEAN_LITERAL
+}
+
+// Keywords have no literal names, since they are lexed as identifiers. This vocabulary gives them their quoted text,
+// so error messages show them like the other literals, as in 'new' or missing 'else'
+@parser::members {
+    public static final Vocabulary DISPLAY_VOCABULARY = displayVocabulary();
+
+    private static Vocabulary displayVocabulary() {
+        var literalNames = new String[_SYMBOLIC_NAMES.length];
+
+        for (int type = 0; type < literalNames.length; type++)
+            literalNames[type] = VOCABULARY.getLiteralName(type);
+
+        // The keywords are declared in order in the tokens block, so their types are consecutive
+        for (int type = ASSERT; type <= GOTO; type++)
+            literalNames[type] = "'" + VOCABULARY.getSymbolicName(type).toLowerCase() + "'";
+
+        literalNames[NULL_LITERAL] = "'null'";
+
+        return new VocabularyImpl(literalNames, _SYMBOLIC_NAMES);
+    }
+}
+
+@lexer::members {
+    private static final java.util.Map<String, Integer> KEYWORDS = new java.util.HashMap<>();
+
+    static {
+        for (var modifier : new String[]{ "abstract", "final", "private", "protected", "public", "static", "transient", "volatile" })
+            KEYWORDS.put(modifier, MODIFIER);
+
+        for (var type : new String[]{ "boolean", "byte", "char", "double", "float", "int", "long", "short" })
+            KEYWORDS.put(type, PRIMITIVE_TYPE);
+
+        KEYWORDS.put("assert", ASSERT);
+        KEYWORDS.put("break", BREAK);
+        KEYWORDS.put("case", CASE);
+        KEYWORDS.put("catch", CATCH);
+        KEYWORDS.put("class", CLASS);
+        KEYWORDS.put("continue", CONTINUE);
+        KEYWORDS.put("default", DEFAULT);
+        KEYWORDS.put("do", DO);
+        KEYWORDS.put("else", ELSE);
+        KEYWORDS.put("enum", ENUM);
+        KEYWORDS.put("extends", EXTENDS);
+        KEYWORDS.put("finally", FINALLY);
+        KEYWORDS.put("for", FOR);
+        KEYWORDS.put("if", IF);
+        KEYWORDS.put("implements", IMPLEMENTS);
+        KEYWORDS.put("import", IMPORT);
+        KEYWORDS.put("instanceof", INSTANCEOF);
+        KEYWORDS.put("interface", INTERFACE);
+        KEYWORDS.put("native", NATIVE);
+        KEYWORDS.put("new", NEW);
+        KEYWORDS.put("package", PACKAGE);
+        KEYWORDS.put("return", RETURN);
+        KEYWORDS.put("super", SUPER);
+        KEYWORDS.put("switch", SWITCH);
+        KEYWORDS.put("synchronized", SYNCHRONIZED);
+        KEYWORDS.put("this", THIS);
+        KEYWORDS.put("throw", THROW);
+        KEYWORDS.put("throws", THROWS);
+        KEYWORDS.put("try", TRY);
+        KEYWORDS.put("void", VOID);
+        KEYWORDS.put("while", WHILE);
+        KEYWORDS.put("const", CONST);
+        KEYWORDS.put("goto", GOTO);
+        KEYWORDS.put("null", NULL_LITERAL);
+        KEYWORDS.put("false", BOOLEAN_LITERAL);
+        KEYWORDS.put("true", BOOLEAN_LITERAL);
+    }
+
+    // Keywords grouped by length and first letter, so an identifier is checked against one or two words at most
+    private static final int MAX_KEYWORD_LENGTH = 12;
+    private static final String[][] BUCKETS = new String[(MAX_KEYWORD_LENGTH + 1) * 26][0];
+
+    static {
+        for (var keyword : KEYWORDS.keySet()) {
+            int bucket = keyword.length() * 26 + keyword.charAt(0) - 'a';
+            BUCKETS[bucket] = java.util.Arrays.copyOf(BUCKETS[bucket], BUCKETS[bucket].length + 1);
+            BUCKETS[bucket][BUCKETS[bucket].length - 1] = keyword;
+        }
+    }
+
+    private int keywordType() {
+        // Compares the matched characters in place, most identifiers are rejected without building their text
+        int length = getCharIndex() - _tokenStartCharIndex;
+        int first = _input.LA(-length);
+
+        if (length > MAX_KEYWORD_LENGTH || first < 'a' || first > 'z')
+            return ID;
+
+        candidates:
+        for (var keyword : BUCKETS[length * 26 + first - 'a']) {
+            for (int i = 1; i < length; i++)
+                if (_input.LA(i - length) != keyword.charAt(i))
+                    continue candidates;
+
+            return KEYWORDS.get(keyword);
+        }
+
+        return ID;
+    }
+}
+
 // Skip comments
 MULTI_LINE_COMMENT : '/*' .*? '*/' -> skip ;
-SINGLE_LINE_COMMENT : '//' (~[\r\n])* -> skip;
+SINGLE_LINE_COMMENT : '//' ~[\r\n]* -> skip ;
 
 // Skip white space characters
-WS : ( EOL | WHITE_SPACE )+ -> skip ;
-
-// white-space and new-line characters
-EOL : [\n\r] ;
-WHITE_SPACE : [ \t\f] ;
-
-// these are keywords, should take precedence
-MODIFIER: ( PUBLIC | PRIVATE | PROTECTED | STATIC | FINAL | ABSTRACT | TRANSIENT | VOLATILE ) ;
-
-// Keywords
-ABSTRACT : 'abstract' ;
-ASSERT : 'assert' ;
-BREAK : 'break' ;
-CASE : 'case' ;
-CATCH : 'catch' ;
-CLASS : 'class' ;
-CONTINUE : 'continue' ;
-DEFAULT : 'default' ;
-DO : 'do' ;
-ELSE : 'else' ;
-ENUM : 'enum' ;
-EXTENDS : 'extends' ;
-FINAL : 'final' ;
-FINALLY : 'finally' ;
-FOR : 'for';
-IF : 'if' ;
-IMPLEMENTS : 'implements' ;
-IMPORT : 'import' ;
-INSTANCEOF : 'instanceof' ;
-INTERFACE : 'interface' ;
-NATIVE : 'native' ;
-NEW : 'new' ;
-PACKAGE : 'package';
-PRIVATE : 'private' ;
-PROTECTED : 'protected' ;
-PUBLIC : 'public' ;
-RETURN : 'return' ;
-STATIC : 'static' ;
-SUPER : 'super';
-SWITCH : 'switch' ;
-SYNCHRONIZED : 'synchronized' ;
-THIS : 'this' ;
-THROW : 'throw' ;
-THROWS : 'throws' ;
-TRANSIENT : 'transient' ;
-TRY : 'try' ;
-VOID : 'void' ;
-VOLATILE : 'volatile' ;
-WHILE : 'while' ;
-
-// Unused keywords
-CONST : 'const' ;
-GOTO : 'goto' ;
-
-// Primitive Types
-PRIMITIVE_TYPE : ( BOOLEAN_TYPE | BYTE_TYPE | CHAR_TYPE | DOUBLE_TYPE | FLOAT_TYPE | INTEGER_TYPE | LONG_TYPE | SHORT_TYPE ) ;
-BOOLEAN_TYPE : 'boolean' ;
-BYTE_TYPE : 'byte' ;
-CHAR_TYPE : 'char' ;
-DOUBLE_TYPE : 'double' ;
-FLOAT_TYPE : 'float' ;
-INTEGER_TYPE : 'int' ;
-LONG_TYPE : 'long' ;
-SHORT_TYPE : 'short' ;
-
-// literals should have priority in their interpretation
-LITERAL: ( NULL_LITERAL | NUMBER_LITERAL | BOOLEAN_LITERAL | CHAR_LITERAL | STRING_LITERAL ) ;
-NULL_LITERAL: 'null' ;
-NUMBER_LITERAL: INTEGER_LITERAL | FLOAT_LITERAL;
-BOOLEAN_LITERAL: ( 'false' | 'true' ) ;
-STRING_LITERAL: '"' ( TEXT_CHAR | '\'' )* '"' ;
-CHAR_LITERAL: '\'' ( TEXT_CHAR | '"' ) '\'' ;
-// This would be nice but we can't have octal right now :(
-//INTEGER_LITERAL : '0' OCT_DIGIT+ | DIGIT+ | '0x' HEX_DIGIT+ | '0b' BIN_DIGIT+ ;
+WS : [ \t\f\r\n]+ -> skip ;
+
+// Each literal kind keeps its own token type, null and boolean literals come from the keyword lookup
 INTEGER_LITERAL : '0' | [1-9] DIGIT* ;
-FLOAT_LITERAL : ( DIGIT+ '.' DIGIT* | DIGIT* '.' DIGIT+ ) ( [eE] DIGIT+ )?;
+FLOAT_LITERAL : ( DIGIT+ '.' DIGIT* | DIGIT* '.' DIGIT+ ) ( [eE] DIGIT+ )? ;
+STRING_LITERAL : '"' ( TEXT_CHAR | '\'' )* '"' ;
+CHAR_LITERAL : '\'' ( TEXT_CHAR | '"' ) '\'' ;
 
-// IDs in the program (variable/method/class names)
-// CLASS_NAME : ID ;
-// FULLY_QUALIFIED_NAME : ( ID DOT )* ID ; // this would give errors because of the lexer, hard code them all
-ID : ( LETTER | UNDERSCORE | DOLLAR )( LETTER | UNDERSCORE | DIGIT | DOLLAR )* ;
+// IDs in the program (variable/method/class names) and keywords
+ID : ( LETTER | UNDERSCORE | DOLLAR )( LETTER | UNDERSCORE | DIGIT | DOLLAR )* { setType(keywordType()); } ;
 
 // basic characters and fragment tokens
 fragment TEXT_CHAR : ~['"\\\r\n\f] | ESCAPED_CHAR ;
@@ -168,7 +215,7 @@ for_inc
     ;
 
 case_statement
-    : CASE value=LITERAL COLON statement* #CaseStatement
+    : CASE value=( INTEGER_LITERAL | FLOAT_LITERAL | BOOLEAN_LITERAL | CHAR_LITERAL | STRING_LITERAL | NULL_LITERAL ) COLON statement* #CaseStatement
     | DEFAULT COLON statement* #DefaultStatement
     ;
 
@@ -201,7 +248,7 @@ expression
     | expression op='||' expression #BinaryOp
     | expression QM expression COLON expression #TernaryOp
     | expression op=('=' | '+=' | '-=' | '*=' | '/=' | '%=' | '&=' | '^=' | '|=' | '<<=' | '>>=' | '>>>=') expression #AssignmentExpression
-    | value=LITERAL #LiteralExpression
+    | value=( INTEGER_LITERAL | FLOAT_LITERAL | BOOLEAN_LITERAL | CHAR_LITERAL | STRING_LITERAL | NULL_LITERAL ) #LiteralExpression
     | id=ID #IdentifierExpression
     | THIS #ThisExpression
     ;
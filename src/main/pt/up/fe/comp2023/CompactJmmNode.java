@@ -0,0 +1,175 @@
+package pt.up.fe.comp2023;
+
+import pt.up.fe.comp.jmm.ast.JmmNodeImpl;
+import pt.up.fe.comp.jmm.ast.NodePosition;
+import pt.up.fe.specs.util.SpecsCheck;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * AST node built by the parser, with the source positions in int fields and the other attributes in small arrays
+ * instead of a hash map.
+ * <p>
+ * Kinds and attribute names are shared by every node of the same rule, and literal values are parsed only once.
+ */
+public class CompactJmmNode extends JmmNodeImpl {
+    private static final String LINE_START = NodePosition.LINE_START.getKey();
+    private static final String COL_START = NodePosition.COL_START.getKey();
+    private static final String LINE_END = NodePosition.LINE_END.getKey();
+    private static final String COL_END = NodePosition.COL_END.getKey();
+    private static final String VALUE = "value";
+
+    // The library puts every attribute as a string, so positions read back as strings
+    private int lineStart = -1;
+    private int colStart = -1;
+    private int lineEnd = -1;
+    private int colEnd = -1;
+
+    private String[] keys;
+    private Object[] values;
+    private int size;
+
+    private boolean literalParsed;
+    private int literal;
+
+    public CompactJmmNode(String kind, Collection<String> hierarchy, int capacity) {
+        super(kind);
+        this.hierarchy = hierarchy;
+        this.keys = new String[capacity];
+        this.values = new Object[capacity];
+    }
+
+    public void setPosition(int lineStart, int colStart, int lineEnd, int colEnd) {
+        this.lineStart = lineStart;
+        this.colStart = colStart;
+        this.lineEnd = lineEnd;
+        this.colEnd = colEnd;
+    }
+
+    /**
+     * Value of an integer or boolean literal, booleans are 1 for true and 0 for false.
+     */
+    public int getLiteral() {
+        if (!literalParsed) {
+            var value = get(VALUE);
+            literal = switch (value) {
+                case "true" -> 1;
+                case "false" -> 0;
+                default -> Integer.parseInt(value);
+            };
+            literalParsed = true;
+        }
+
+        return literal;
+    }
+
+    @Override
+    public Collection<String> getAttributes() {
+        List<String> attributes = new ArrayList<>(size + 4);
+
+        if (lineStart >= 0)
+            attributes.add(LINE_START);
+        if (colStart >= 0)
+            attributes.add(COL_START);
+        if (lineEnd >= 0)
+            attributes.add(LINE_END);
+        if (colEnd >= 0)
+            attributes.add(COL_END);
+
+        attributes.addAll(Arrays.asList(keys).subList(0, size));
+
+        return attributes;
+    }
+
+    @Override
+    public boolean hasAttribute(String attribute) {
+        return position(attribute) >= 0 || indexOf(attribute) >= 0;
+    }
+
+    @Override
+    public void putObject(String attribute, Object value) {
+        if (setPosition(attribute, value))
+            return;
+
+        if (attribute.equals(VALUE))
+            literalParsed = false;
+
+        int index = indexOf(attribute);
+
+        if (index < 0) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2 + 1);
+                values = Arrays.copyOf(values, size * 2 + 1);
+            }
+
+            index = size++;
+            keys[index] = attribute;
+        }
+
+        values[index] = value;
+    }
+
+    @Override
+    public Object getObject(String attribute) {
+        var value = getOptionalObject(attribute).orElse(null);
+
+        SpecsCheck.checkNotNull(value, () -> "Node " + getKind() + " does not contain attribute '" + attribute + "'");
+
+        return value;
+    }
+
+    @Override
+    public Optional<Object> getOptionalObject(String attribute) {
+        int position = position(attribute);
+
+        if (position >= 0)
+            return Optional.of(Integer.toString(position));
+
+        int index = indexOf(attribute);
+
+        return index < 0 ? Optional.empty() : Optional.ofNullable(values[index]);
+    }
+
+    private int indexOf(String attribute) {
+        for (int i = 0; i < size; i++)
+            if (keys[i].equals(attribute))
+                return i;
+
+        return -1;
+    }
+
+    private int position(String attribute) {
+        if (attribute.equals(LINE_START))
+            return lineStart;
+        if (attribute.equals(COL_START))
+            return colStart;
+        if (attribute.equals(LINE_END))
+            return lineEnd;
+        if (attribute.equals(COL_END))
+            return colEnd;
+
+        return -1;
+    }
+
+    private boolean setPosition(String attribute, Object value) {
+        if (!(value instanceof String string))
+            return false;
+
+        if (attribute.equals(LINE_START))
+            lineStart = Integer.parseInt(string);
+        else if (attribute.equals(COL_START))
+            colStart = Integer.parseInt(string);
+        else if (attribute.equals(LINE_END))
+            lineEnd = Integer.parseInt(string);
+        else if (attribute.equals(COL_END))
+            colEnd = Integer.parseInt(string);
+        else
+            return false;
+
+        return true;
+    }
+}
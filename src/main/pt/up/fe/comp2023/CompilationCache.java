@@ -0,0 +1,382 @@
+package pt.up.fe.comp2023;
+
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
+import pt.up.fe.comp2023.optimization.Profile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * On-disk cache of compiled programs, keyed by a hash of the source, its path, the options that change the output and
+ * the compiler build.
+ * <p>
+ * Entries are written to a temporary folder and renamed into place, so concurrent compilers only ever see complete
+ * entries. The least recently used entries are evicted once the cache grows over its size limit.
+ * <p>
+ * The code of single methods is kept in the same way for {@link IncrementalCompiler}, so programs that changed can still
+ * reuse the methods that did not.
+ */
+public class CompilationCache {
+    public static final long DEFAULT_MAX_SIZE = 256L << 20;
+
+    // The input file is named in the .source directive and in profiles, so the same code at another path is another program
+    private static final String[] OUTPUT_KEYS = {"optimize", "registerAllocation", "unrollFactor", "profile", "profileFile", "inputFile"};
+    private static final String OLLIR_FILE = "code.ollir";
+    private static final String JASMIN_FILE = "code.j";
+    private static final String STATS_FILE = "stats";
+    private static final String TEMP_PREFIX = "tmp-";
+    // Temporary folders this old were left behind by a compiler that died while writing
+    private static final Duration TEMP_EXPIRY = Duration.ofHours(1);
+
+    private static String compilerVersion;
+
+    public record Fragment(String ollir, String jasmin) {
+    }
+
+    public record Stats(long hits, long misses) {
+        public double hitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Compilation cache: %d hits, %d misses, %.1f%% hit rate", hits, misses, hitRate() * 100);
+        }
+    }
+
+    private final Path folder;
+    private final long maxSize;
+
+    public CompilationCache(Path folder, long maxSize) {
+        this.folder = folder;
+        this.maxSize = maxSize;
+    }
+
+    public static Path getDefaultFolder() {
+        return Path.of(System.getProperty("user.home"), ".cache", "jmm");
+    }
+
+    public String key(byte[] source, Map<String, String> config) throws IOException {
+        var digest = sha256();
+
+        digest.update(getCompilerVersion().getBytes(StandardCharsets.UTF_8));
+
+        for (var key : OUTPUT_KEYS)
+            digest.update(("\0" + key + "=" + config.get(key)).getBytes(StandardCharsets.UTF_8));
+
+        digest.update((byte) 0);
+        digest.update(source);
+
+        // A profile changes the output as much as the source does
+        if (config.containsKey(Profile.CONFIG_KEY)) {
+            digest.update((byte) 0);
+            digest.update(Files.readAllBytes(Path.of(config.get(Profile.CONFIG_KEY))));
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Returns the program stored under the given key, running it does not assemble the Jasmin code again.
+     */
+    public Optional<JasminResult> get(String key, Map<String, String> config) {
+        var entry = folder.resolve(key);
+
+        try {
+            var result = load(entry, config);
+
+            // The modification time orders entries for eviction
+            Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+            count(true);
+
+            return Optional.of(result);
+        } catch (IOException e) {
+            // A missing entry, or one evicted while being read, is a miss
+            count(false);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores a compiled program and returns it as read back from the cache, or unchanged if it could not be stored.
+     */
+    public JasminResult put(String key, String ollirCode, JasminResult jasminResult) {
+        var entry = folder.resolve(key);
+
+        try {
+            store(entry, temp -> {
+                Files.writeString(temp.resolve(OLLIR_FILE), ollirCode);
+                Files.writeString(temp.resolve(JASMIN_FILE), jasminResult.getJasminCode());
+                jasminResult.compile(temp.toFile());
+            });
+
+            return load(entry, jasminResult.getConfig());
+        } catch (IOException | RuntimeException e) {
+            return jasminResult;
+        }
+    }
+
+    /**
+     * Returns the code of the method with the given fingerprint, as stored by an earlier compilation.
+     */
+    public Optional<Fragment> getFragment(String fingerprint) {
+        var entry = folder.resolve(fragmentKey(fingerprint));
+
+        try {
+            var fragment = new Fragment(Files.readString(entry.resolve(OLLIR_FILE)), Files.readString(entry.resolve(JASMIN_FILE)));
+            Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+
+            return Optional.of(fragment);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    // Best effort like the statistics, a method that is not stored is compiled again next time
+    public void putFragment(String fingerprint, Fragment fragment) {
+        try {
+            store(folder.resolve(fragmentKey(fingerprint)), temp -> {
+                Files.writeString(temp.resolve(OLLIR_FILE), fragment.ollir());
+                Files.writeString(temp.resolve(JASMIN_FILE), fragment.jasmin());
+            });
+        } catch (IOException | RuntimeException ignored) {
+        }
+    }
+
+    private interface EntryWriter {
+        void write(Path temp) throws IOException;
+    }
+
+    // Written to a temporary folder first, which is renamed into place once complete
+    private void store(Path entry, EntryWriter writer) throws IOException {
+        var temp = folder.resolve(TEMP_PREFIX + UUID.randomUUID());
+
+        try {
+            Files.createDirectories(temp);
+            writer.write(temp);
+
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                // Another compiler stored the same entry first, both are the same
+                delete(temp);
+            }
+        } catch (IOException | RuntimeException e) {
+            delete(temp);
+            throw e;
+        }
+
+        evict();
+    }
+
+    // Methods are keyed apart from programs, and a rebuilt compiler may generate different code for them
+    private static String fragmentKey(String fingerprint) {
+        var digest = sha256();
+
+        digest.update(getCompilerVersion().getBytes(StandardCharsets.UTF_8));
+        digest.update("\0method\0".getBytes(StandardCharsets.UTF_8));
+        digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public Stats getStats() {
+        var buffer = ByteBuffer.allocate(2 * Long.BYTES);
+
+        try (var channel = FileChannel.open(folder.resolve(STATS_FILE), StandardOpenOption.READ)) {
+            channel.read(buffer, 0);
+        } catch (IOException e) {
+            return new Stats(0, 0);
+        }
+
+        return new Stats(buffer.getLong(0), buffer.getLong(Long.BYTES));
+    }
+
+    private JasminResult load(Path entry, Map<String, String> config) throws IOException {
+        var jasminCode = Files.readString(entry.resolve(JASMIN_FILE));
+
+        try (var files = Files.list(entry)) {
+            var classFile = files.filter(file -> file.toString().endsWith(".class"))
+                    .findFirst()
+                    .orElseThrow(() -> new NoSuchFileException(entry + "/*.class"));
+
+            // Read now, the entry may be evicted before the program runs
+            return new CachedJasminResult(classFile.getFileName().toString(), Files.readAllBytes(classFile), jasminCode, config);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void count(boolean hit) {
+        // Every compiler updates the same counters, so they are read and written under a file lock
+        try {
+            Files.createDirectories(folder);
+
+            try (var channel = FileChannel.open(folder.resolve(STATS_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+
+                try {
+                    var buffer = ByteBuffer.allocate(2 * Long.BYTES);
+                    channel.read(buffer, 0);
+
+                    int offset = hit ? 0 : Long.BYTES;
+                    buffer.putLong(offset, buffer.getLong(offset) + 1);
+                    channel.write(buffer.rewind(), 0);
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException ignored) {
+            // Statistics are best effort, failing to count does not change the compilation
+        }
+    }
+
+    private void evict() throws IOException {
+        record Entry(Path path, long size, FileTime lastUsed) {
+        }
+
+        var entries = new ArrayList<Entry>();
+        long total = 0;
+
+        try (var files = Files.list(folder)) {
+            for (var path : files.toList()) {
+                if (!Files.isDirectory(path))
+                    continue;
+
+                var lastUsed = Files.getLastModifiedTime(path);
+
+                if (path.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    if (lastUsed.toInstant().isBefore(Instant.now().minus(TEMP_EXPIRY)))
+                        delete(path);
+                    continue;
+                }
+
+                var entry = new Entry(path, size(path), lastUsed);
+                entries.add(entry);
+                total += entry.size();
+            }
+        }
+
+        entries.sort(Comparator.comparing(Entry::lastUsed));
+
+        for (var entry : entries) {
+            if (total <= maxSize)
+                break;
+
+            // Renamed away first so that readers never see a partially deleted entry
+            var doomed = folder.resolve(TEMP_PREFIX + UUID.randomUUID());
+
+            try {
+                Files.move(entry.path(), doomed, StandardCopyOption.ATOMIC_MOVE);
+                delete(doomed);
+            } catch (NoSuchFileException e) {
+                // Already evicted by another compiler
+            }
+
+            total -= entry.size();
+        }
+    }
+
+    private static long size(Path entry) throws IOException {
+        long size = 0;
+
+        try (var files = Files.list(entry)) {
+            for (var file : files.toList())
+                size += Files.size(file);
+        }
+
+        return size;
+    }
+
+    private static void delete(Path path) {
+        try (var files = Files.walk(path)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(file);
+        } catch (IOException | UncheckedIOException ignored) {
+            // Left for a later eviction to clean up
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static synchronized String getCompilerVersion() {
+        // Any rebuild of the compiler may change its output, so the build itself is part of the key
+        if (compilerVersion == null) {
+            var digest = sha256();
+
+            try (var files = Files.walk(Path.of(CompilationCache.class.getProtectionDomain().getCodeSource().getLocation().toURI()))) {
+                for (var file : files.filter(Files::isRegularFile).sorted().toList())
+                    digest.update((file + ":" + Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis() + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+            } catch (IOException | URISyntaxException | UncheckedIOException e) {
+                throw new RuntimeException("Could not fingerprint the compiler build", e);
+            }
+
+            compilerVersion = HexFormat.of().formatHex(digest.digest());
+        }
+
+        return compilerVersion;
+    }
+
+    // Runs the stored class file instead of assembling the Jasmin code again
+    static class CachedJasminResult extends JasminResult {
+        private final String classFileName;
+        private final byte[] classBytes;
+
+        CachedJasminResult(String classFileName, byte[] classBytes, String jasminCode, Map<String, String> config) {
+            super(classFileName.substring(0, classFileName.length() - ".class".length()), jasminCode, List.of(), config);
+            this.classFileName = classFileName;
+            this.classBytes = classBytes;
+        }
+
+        byte[] getClassBytes() {
+            return classBytes;
+        }
+
+        @Override
+        public File compile(File outputDir) {
+            var target = outputDir.toPath().resolve(classFileName);
+
+            try {
+                Files.createDirectories(outputDir.toPath());
+                Files.write(target, classBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return target.toFile();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package pt.up.fe.comp2023;
+
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ast.NodePosition;
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
+import pt.up.fe.comp.jmm.parser.JmmParserResult;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.ReportType;
+import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp2023.CompilationCache.Fragment;
+import pt.up.fe.comp2023.analysis.Analyzer;
+import pt.up.fe.comp2023.backend.Backend;
+import pt.up.fe.comp2023.backend.JasminOptimizer;
+import pt.up.fe.comp2023.optimization.Optimizer;
+import pt.up.fe.comp2023.optimization.Profile;
+import pt.up.fe.specs.util.SpecsEnums;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Compiles parsed programs, reusing the OLLIR and Jasmin code of the methods that did not change since an earlier
+ * compilation.
+ * <p>
+ * A method is fingerprinted by its subtree together with the class-level declarations it can depend on: imports,
+ * fields and the signatures of every method. Unchanged methods are declared in the symbol table, then removed from the
+ * tree before their bodies are analysed, and their code is spliced back into the output in declaration order.
+ * <p>
+ * The code of each method is kept in memory for the next compilation by the same compiler, or in a
+ * {@link CompilationCache} for the compilations of any later process.
+ */
+public class IncrementalCompiler {
+    private static final String[] OUTPUT_KEYS = {"optimize", "registerAllocation", "unrollFactor", "profile", "profileFile"};
+    private static final Set<String> POSITIONS = new HashSet<>(SpecsEnums.getKeys(NodePosition.class));
+    private static final String CONSTRUCTOR = "<init>";
+
+    private static final Pattern OLLIR_METHOD = Pattern.compile("^ {4}\\.(method|construct) ");
+    private static final Pattern JASMIN_METHOD = Pattern.compile("^\\.method ");
+
+    public record Stats(int reused, int compiled) {
+        @Override
+        public String toString() {
+            return "Incremental compilation: " + reused + " methods reused, " + compiled + " compiled";
+        }
+    }
+
+    private final CompilationCache cache;
+    private Map<String, Fragment> fragments = new HashMap<>();
+    private String ollirCode = "";
+    private Stats stats = new Stats(0, 0);
+
+    public IncrementalCompiler() {
+        this(null);
+    }
+
+    public IncrementalCompiler(CompilationCache cache) {
+        this.cache = cache;
+    }
+
+    public JasminResult compile(JmmParserResult parserResult) {
+        var config = parserResult.getConfig();
+        var root = parserResult.getRootNode();
+        var members = getMembers(root);
+        var reports = new ArrayList<Report>();
+
+        // The class context has to be hashed before any member is removed from the tree
+        var context = classContext(root, config);
+        var fingerprints = new LinkedHashMap<String, String>();
+
+        for (var member : members)
+            fingerprints.put(getName(member), fingerprint(context, member));
+
+        // Members are matched to their code by name, so overloads are always compiled in full. Profiled code numbers its
+        // counters across the whole class, and the counts of a profile may have changed, so neither can be reused
+        var reusable = fingerprints.size() == members.size() && !Boolean.parseBoolean(config.get("profile"))
+                && !config.containsKey(Profile.CONFIG_KEY);
+        var reused = new HashMap<String, Fragment>();
+        var unchanged = new ArrayList<JmmNode>();
+
+        for (var member : members) {
+            var fragment = reusable ? lookup(fingerprints.get(getName(member))) : null;
+
+            if (fragment != null) {
+                reused.put(getName(member), fragment);
+                unchanged.add(member);
+            }
+        }
+
+        var semanticsResult = new Analyzer().semanticAnalysis(parserResult, unchanged);
+        reports.addAll(semanticsResult.getReports());
+
+        if (hasErrors(reports))
+            return new JasminResult(semanticsResult.getSymbolTable().getClassName(), "", reports, config);
+
+        var optimizer = new Optimizer();
+        semanticsResult = optimizer.optimize(semanticsResult);
+        var ollirResult = optimizer.optimize(optimizer.toOllir(semanticsResult));
+        reports.addAll(ollirResult.getReports());
+
+        if (hasErrors(reports))
+            return new JasminResult(semanticsResult.getSymbolTable().getClassName(), "", reports, config);
+
+        var jasminResult = new Backend().toJasmin(ollirResult);
+        reports.addAll(jasminResult.getReports());
+
+        if (hasErrors(reports))
+            return new JasminResult(jasminResult.getClassName(), "", reports, config);
+
+        var ollir = split(ollirResult.getOllirCode(), line -> OLLIR_METHOD.matcher(line).find(), line -> line.equals("    }"));
+        var jasmin = split(jasminResult.getJasminCode(), line -> JASMIN_METHOD.matcher(line).find(), line -> line.equals(".end method"));
+
+        var ollirMethods = new LinkedHashMap<String, String>();
+        var jasminMethods = new LinkedHashMap<String, String>();
+        var newFragments = new HashMap<String, Fragment>();
+
+        if (reusable) {
+            for (var name : fingerprints.keySet()) {
+                var fragment = reused.getOrDefault(name, new Fragment(ollir.methods().get(name), jasmin.methods().get(name)));
+
+                // The backend skips some invalid members, those have no code to reuse
+                if (fragment.ollir() == null || fragment.jasmin() == null)
+                    continue;
+
+                ollirMethods.put(name, fragment.ollir());
+                jasminMethods.put(name, fragment.jasmin());
+                newFragments.put(fingerprints.get(name), fragment);
+            }
+        }
+
+        // Code that belongs to no member, like the default constructor, comes after the members
+        ollir.methods().forEach(ollirMethods::putIfAbsent);
+        jasmin.methods().forEach(jasminMethods::putIfAbsent);
+
+        // Like whole programs in the cache, the code of programs with warnings is not kept, so they are printed again
+        if (!hasWarnings(reports))
+            store(newFragments, reused.keySet().stream().map(fingerprints::get).collect(Collectors.toSet()));
+
+        ollirCode = reusable ? ollir.join(ollirMethods) : ollirResult.getOllirCode();
+        stats = new Stats(reused.size(), members.size() - reused.size());
+
+        if (Boolean.parseBoolean(config.get("debug")))
+            reports.add(new Report(ReportType.DEBUG, Stage.OTHER, -1, -1, stats.toString()));
+
+        var jasminCode = reusable ? jasmin.join(jasminMethods) : jasminResult.getJasminCode();
+        jasminResult = new JasminResult(jasminResult.getClassName(), jasminCode, reports, config);
+
+        if (Boolean.parseBoolean(config.get("optimize"))) {
+            var optimized = new JasminOptimizer().optimize(jasminResult);
+            reports.addAll(optimized.getReports());
+            jasminResult = new JasminResult(optimized.getClassName(), optimized.getJasminCode(), reports, config);
+        }
+
+        return jasminResult;
+    }
+
+    private Fragment lookup(String fingerprint) {
+        return cache == null ? fragments.get(fingerprint) : cache.getFragment(fingerprint).orElse(null);
+    }
+
+    private void store(Map<String, Fragment> newFragments, Set<String> reused) {
+        if (cache == null) {
+            fragments = newFragments;
+            return;
+        }
+
+        newFragments.forEach((fingerprint, fragment) -> {
+            if (!reused.contains(fingerprint))
+                cache.putFragment(fingerprint, fragment);
+        });
+    }
+
+    /**
+     * OLLIR code of the whole class from the last compilation, with the reused methods spliced in.
+     */
+    public String getOllirCode() {
+        return ollirCode;
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    private static List<JmmNode> getMembers(JmmNode root) {
+        var members = new ArrayList<JmmNode>();
+
+        for (var declaration : root.getChildren())
+            if (declaration.getKind().equals("ClassDeclaration"))
+                for (var definition : declaration.getChildren())
+                    if (definition.getKind().equals("Program_definition"))
+                        for (var member : definition.getChildren())
+                            if (isMember(member))
+                                members.add(member);
+
+        return members;
+    }
+
+    private static boolean isMember(JmmNode node) {
+        return node.getKind().equals("MethodDeclaration") || node.getKind().equals("ConstructorDeclaration");
+    }
+
+    private static String getName(JmmNode member) {
+        return member.getKind().equals("ConstructorDeclaration") ? CONSTRUCTOR : member.get("methodName");
+    }
+
+    private static byte[] classContext(JmmNode root, Map<String, String> config) {
+        var digest = sha256();
+
+        for (var key : OUTPUT_KEYS)
+            update(digest, key + "=" + config.get(key));
+
+        hash(root, digest, true);
+
+        return digest.digest();
+    }
+
+    private static String fingerprint(byte[] context, JmmNode member) {
+        var digest = sha256();
+
+        digest.update(context);
+        hash(member, digest, false);
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Positions are left out, so moving a method without changing it keeps its fingerprint
+    private static void hash(JmmNode node, MessageDigest digest, boolean signaturesOnly) {
+        update(digest, node.getKind());
+
+        for (var attribute : node.getAttributes())
+            if (!POSITIONS.contains(attribute))
+                update(digest, attribute + "=" + node.getObject(attribute));
+
+        var member = signaturesOnly && isMember(node);
+
+        for (var child : node.getChildren())
+            if (!member || isSignature(child))
+                hash(child, digest, signaturesOnly);
+
+        update(digest, ")");
+    }
+
+    private static boolean isSignature(JmmNode node) {
+        return node.getKind().equals("ParameterList") || node.getKind().endsWith("Type");
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean hasErrors(List<Report> reports) {
+        return reports.stream().anyMatch(report -> report.getType() == ReportType.ERROR);
+    }
+
+    private static boolean hasWarnings(List<Report> reports) {
+        return reports.stream().anyMatch(report -> report.getType() == ReportType.WARNING);
+    }
+
+    // Generated code split into the text before the first method, each method with the blank lines after it, and the rest
+    private record SplitCode(String prefix, Map<String, String> methods, String suffix) {
+        String join(Map<String, String> methods) {
+            var sb = new StringBuilder(prefix);
+            methods.values().forEach(sb::append);
+            return sb.append(suffix).toString();
+        }
+    }
+
+    private static SplitCode split(String code, Predicate<String> isStart, Predicate<String> isEnd) {
+        var lines = code.split("(?<=\n)");
+        var methods = new LinkedHashMap<String, String>();
+        var prefix = new StringBuilder();
+        var suffix = new StringBuilder();
+
+        int i = 0;
+        while (i < lines.length && !isStart.test(lines[i]))
+            prefix.append(lines[i++]);
+
+        while (i < lines.length && isStart.test(lines[i])) {
+            var name = methodName(lines[i]);
+            var method = new StringBuilder();
+
+            while (i < lines.length && !isEnd.test(lines[i].stripTrailing()))
+                method.append(lines[i++]);
+
+            if (i < lines.length)
+                method.append(lines[i++]);
+
+            while (i < lines.length && lines[i].isBlank())
+                method.append(lines[i++]);
+
+            methods.put(name, method.toString());
+        }
+
+        while (i < lines.length)
+            suffix.append(lines[i++]);
+
+        return new SplitCode(prefix.toString(), methods, suffix.toString());
+    }
+
+    private static String methodName(String header) {
+        if (header.stripLeading().startsWith(".construct "))
+            return CONSTRUCTOR;
+
+        var signature = header.substring(0, header.indexOf('('));
+        return signature.substring(signature.lastIndexOf(' ') + 1);
+    }
+}
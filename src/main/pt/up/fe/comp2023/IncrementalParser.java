@@ -0,0 +1,153 @@
+package pt.up.fe.comp2023;
+
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ast.NodePosition;
+import pt.up.fe.comp.jmm.parser.JmmParserResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Reparses only the method or constructor an edit falls in and splices the new subtree into the previous AST.
+ * <p>
+ * The previous tree is updated in place, so it must be the parser's output and not a tree already changed by the
+ * later stages. Edits that are not strictly inside a single method or constructor fall back to a full parse.
+ */
+public class IncrementalParser {
+
+    public record TextEdit(int offset, int length, String text) {
+        public String apply(String code) {
+            return code.substring(0, offset) + text + code.substring(offset + length);
+        }
+    }
+
+    private final SimpleParser parser = new SimpleParser();
+
+    public JmmParserResult reparse(JmmParserResult previous, String previousCode, TextEdit edit) {
+        var config = previous.getConfig();
+        var code = edit.apply(previousCode);
+        var root = previous.getRootNode();
+
+        if (root == null)
+            return parser.parse(code, config);
+
+        var previousLines = new LineIndex(previousCode);
+        var enclosing = findEnclosingMember(root, previousLines, edit);
+
+        if (enclosing.isEmpty())
+            return parser.parse(code, config);
+
+        var member = enclosing.get();
+        int start = previousLines.offset(member, NodePosition.LINE_START, NodePosition.COL_START);
+        // Members end with a closing brace, the end position is the start of that token
+        int end = previousLines.offset(member, NodePosition.LINE_END, NodePosition.COL_END) + 1;
+
+        var memberCode = code.substring(start, end + edit.text().length() - edit.length());
+        var rule = member.getKind().equals("MethodDeclaration") ? "method_declaration" : "constructor_declaration";
+        var result = parser.parse(memberCode, rule, config);
+        var newMember = result.getRootNode();
+
+        // The edit may have changed what the text is, or left tokens after the member that belong to its siblings
+        if (newMember == null || !newMember.getKind().equals(member.getKind())
+                || new LineIndex(memberCode).offset(newMember, NodePosition.LINE_END, NodePosition.COL_END) != memberCode.length() - 1)
+            return parser.parse(code, config);
+
+        int startLine = Integer.parseInt(member.get(NodePosition.LINE_START.getKey()));
+        int startColumn = Integer.parseInt(member.get(NodePosition.COL_START.getKey()));
+        relocate(newMember, new Shift(1, 0, startLine - 1, startColumn));
+
+        // Everything after the edit moves by the lines and columns it added or removed
+        var previousEnd = previousLines.position(edit.offset() + edit.length());
+        var newEnd = new LineIndex(code).position(edit.offset() + edit.text().length());
+        shiftAfter(root, member, new Shift(previousEnd[0], previousEnd[1], newEnd[0] - previousEnd[0], newEnd[1] - previousEnd[1]));
+
+        member.replace(newMember);
+
+        return new JmmParserResult(root, result.getReports(), config);
+    }
+
+    private Optional<JmmNode> findEnclosingMember(JmmNode root, LineIndex lines, TextEdit edit) {
+        var definitions = root.getChildren().stream()
+                .filter(child -> child.getKind().equals("ClassDeclaration"))
+                .flatMap(declaration -> declaration.getChildren().stream())
+                .filter(child -> child.getKind().equals("Program_definition"))
+                .toList();
+
+        for (var definition : definitions) {
+            for (var member : definition.getChildren()) {
+                if (!member.getKind().equals("MethodDeclaration") && !member.getKind().equals("ConstructorDeclaration"))
+                    continue;
+
+                int start = lines.offset(member, NodePosition.LINE_START, NodePosition.COL_START);
+                int end = lines.offset(member, NodePosition.LINE_END, NodePosition.COL_END);
+
+                // The first and last tokens must survive, otherwise the edit could merge the member with its neighbours
+                if (start < edit.offset() && edit.offset() + edit.length() < end)
+                    return Optional.of(member);
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    // Moves positions at or after (line, column) by the given deltas, the column only changes on that same line
+    private record Shift(int line, int column, int lineDelta, int columnDelta) {
+        void apply(JmmNode node, NodePosition lineKey, NodePosition columnKey) {
+            int nodeLine = Integer.parseInt(node.get(lineKey.getKey()));
+            int nodeColumn = Integer.parseInt(node.get(columnKey.getKey()));
+
+            if (nodeLine < line || nodeLine == line && nodeColumn < column)
+                return;
+
+            if (nodeLine == line)
+                node.put(columnKey.getKey(), Integer.toString(nodeColumn + columnDelta));
+
+            node.put(lineKey.getKey(), Integer.toString(nodeLine + lineDelta));
+        }
+    }
+
+    private void relocate(JmmNode node, Shift shift) {
+        shift.apply(node, NodePosition.LINE_START, NodePosition.COL_START);
+        shift.apply(node, NodePosition.LINE_END, NodePosition.COL_END);
+
+        for (var child : node.getChildren())
+            relocate(child, shift);
+    }
+
+    private void shiftAfter(JmmNode node, JmmNode skip, Shift shift) {
+        if (node == skip)
+            return;
+
+        shift.apply(node, NodePosition.LINE_START, NodePosition.COL_START);
+        shift.apply(node, NodePosition.LINE_END, NodePosition.COL_END);
+
+        for (var child : node.getChildren())
+            shiftAfter(child, skip, shift);
+    }
+
+    // Offsets of the first character of each line, lines are counted the way the lexer does
+    private static class LineIndex {
+        private final List<Integer> starts = new ArrayList<>();
+
+        LineIndex(String code) {
+            starts.add(0);
+
+            for (int i = 0; i < code.length(); i++)
+                if (code.charAt(i) == '\n')
+                    starts.add(i + 1);
+        }
+
+        int offset(JmmNode node, NodePosition lineKey, NodePosition columnKey) {
+            return starts.get(Integer.parseInt(node.get(lineKey.getKey())) - 1) + Integer.parseInt(node.get(columnKey.getKey()));
+        }
+
+        int[] position(int offset) {
+            int index = Collections.binarySearch(starts, offset);
+            int line = index >= 0 ? index : -index - 2;
+
+            return new int[]{line + 1, offset - starts.get(line)};
+        }
+    }
+}
@@ -0,0 +1,630 @@
+package pt.up.fe.comp2023;
+
+import jasmin.ClassFile;
+import pt.up.fe.comp.TestUtils;
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
+import pt.up.fe.specs.util.system.ProcessOutputAsString;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Runs compiled programs inside the current JVM, instead of starting a new one for each run like
+ * {@link JasminResult#run()} does.
+ * <p>
+ * The Jasmin code is assembled in memory and loaded, together with the helper classes on the classpath, by a class
+ * loader of its own, so every run starts with fresh static state. While a program runs, the standard streams of its
+ * thread are redirected, so several programs can run at the same time. Captured input is given out one line per read,
+ * so helpers that make a new Scanner for every prompt, like BoardBase, do not lose the lines after it.
+ * <p>
+ * A program that runs for too long is stopped with {@link Thread#stop()}, which JVMs since Java 20 no longer support.
+ * There, and whenever it is asked to, the runner starts a JVM of its own for each program instead, which can always be
+ * stopped, but gives the program all its input at once. Programs that run in this JVM also share its exit: a helper
+ * that calls {@link System#exit(int)} ends the compiler too, so helpers report errors with exceptions instead.
+ */
+public class JasminRunner {
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(5);
+
+    private static final int TIMEOUT_RETURN_VALUE = -1;
+    private static final Duration DRAIN_INTERVAL = Duration.ofMillis(100);
+    private static final boolean CAN_STOP_THREADS = Runtime.version().feature() < 20;
+
+    private record Program(String className, byte[] classBytes) {
+    }
+
+    private static final ThreadLocal<OutputStream> STDOUT = new ThreadLocal<>();
+    private static final ThreadLocal<OutputStream> STDERR = new ThreadLocal<>();
+    private static final ThreadLocal<InputStream> STDIN = new ThreadLocal<>();
+
+    private static PrintStream redirectedOut;
+    private static PrintStream redirectedErr;
+    private static InputStream redirectedIn;
+    private static PrintStream inheritedOut;
+    private static PrintStream inheritedErr;
+    private static InputStream inheritedIn;
+
+    private final List<String> classpath;
+    private final Duration timeout;
+    private final boolean separateProcess;
+
+    public JasminRunner() {
+        this(List.of(TestUtils.getLibsClasspath()), DEFAULT_TIMEOUT);
+    }
+
+    public JasminRunner(List<String> classpath, Duration timeout) {
+        this(classpath, timeout, !CAN_STOP_THREADS);
+    }
+
+    /**
+     * @param separateProcess whether every program runs in a JVM of its own, even when this JVM can stop them
+     */
+    public JasminRunner(List<String> classpath, Duration timeout, boolean separateProcess) {
+        this.classpath = List.copyOf(classpath);
+        this.timeout = timeout;
+        this.separateProcess = separateProcess || !CAN_STOP_THREADS;
+    }
+
+    /**
+     * Runs the program and returns everything it printed, like {@link JasminResult#run()}.
+     */
+    public String run(JasminResult result) {
+        return run(result, List.of(), null).getOutput();
+    }
+
+    public String run(JasminResult result, String input) {
+        return run(result, List.of(), input).getOutput();
+    }
+
+    /**
+     * Runs the program with its output captured, giving up on it after the timeout.
+     *
+     * @param input the text the program reads from the standard input, one line at a time, or null for none
+     */
+    public ProcessOutputAsString run(JasminResult result, List<String> args, String input) {
+        if (separateProcess)
+            return runSeparately(assemble(result), args, input);
+
+        var stdout = new ByteArrayOutputStream();
+        var stderr = new ByteArrayOutputStream();
+        var stdin = new LineInputStream(input == null ? new byte[0] : input.getBytes());
+
+        redirect();
+
+        int returnValue = execute(assemble(result), args, () -> {
+            STDOUT.set(stdout);
+            STDERR.set(stderr);
+            STDIN.set(stdin);
+        });
+
+        if (returnValue == TIMEOUT_RETURN_VALUE)
+            stderr.writeBytes(timeoutMessage().getBytes());
+
+        return new ProcessOutputAsString(returnValue, stdout.toString(Charset.defaultCharset()),
+                stderr.toString(Charset.defaultCharset()));
+    }
+
+    /**
+     * Runs the program with the standard streams of this process, giving up on it after the timeout.
+     *
+     * @return 0 if the program finished normally, 1 if it threw an exception and -1 if it timed out
+     */
+    public int runInherited(JasminResult result, List<String> args) {
+        if (separateProcess) {
+            int returnValue = launch(assemble(result), args, ProcessBuilder::inheritIO);
+
+            if (returnValue == TIMEOUT_RETURN_VALUE)
+                System.err.print(timeoutMessage());
+
+            return returnValue;
+        }
+
+        redirect();
+
+        var stdout = new HeldOutputStream(inheritedOut, System.console() != null);
+        var stderr = new DrainingOutputStream(stdout, inheritedErr);
+        var stdin = new DrainingInputStream(stdout, inheritedIn);
+
+        // Output held while the program runs for long without reading or ending still shows every so often
+        var drainer = Executors.newSingleThreadScheduledExecutor(task -> {
+            var thread = new Thread(task, "output drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        drainer.scheduleWithFixedDelay(stdout::drainQuietly, DRAIN_INTERVAL.toMillis(), DRAIN_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+
+        int returnValue;
+
+        try {
+            returnValue = execute(assemble(result), args, () -> {
+                STDOUT.set(stdout);
+                STDERR.set(stderr);
+                STDIN.set(stdin);
+            });
+        } finally {
+            drainer.shutdownNow();
+            stdout.drainQuietly();
+        }
+
+        if (returnValue == TIMEOUT_RETURN_VALUE)
+            System.err.print(timeoutMessage());
+
+        return returnValue;
+    }
+
+    /**
+     * Assembles Jasmin code into the bytes of a class file, without writing anything to disk.
+     */
+    public static byte[] assemble(String jasminCode, String fileName) {
+        return assemble(jasminCode, fileName, new ClassFile());
+    }
+
+    private static byte[] assemble(String jasminCode, String fileName, ClassFile classFile) {
+        try {
+            classFile.readJasmin(new StringReader(jasminCode), fileName, true);
+
+            if (classFile.errorCount() > 0)
+                throw new RuntimeException("Found " + classFile.errorCount() + " errors while compiling Jasmin code.");
+
+            var bytes = new ByteArrayOutputStream();
+            classFile.write(bytes);
+
+            return bytes.toByteArray();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Exception while assembling Jasmin code: " + e.getMessage() + "\nCode: " + jasminCode, e);
+        }
+    }
+
+    private static Program assemble(JasminResult result) {
+        // Cached programs already hold the class file
+        if (result instanceof CompilationCache.CachedJasminResult cached)
+            return new Program(cached.getClassName(), cached.getClassBytes());
+
+        var classFile = new ClassFile();
+        var classBytes = assemble(result.getJasminCode(), result.getClassName() + ".j", classFile);
+
+        return new Program(classFile.getClassName().replace('/', '.'), classBytes);
+    }
+
+    // Runs main on a thread of its own, so that it can be abandoned when it takes too long
+    private int execute(Program program, List<String> args, Runnable setup) {
+        var task = new FutureTask<>(() -> {
+            setup.run();
+
+            try {
+                return invokeMain(program, args, System.err);
+            } finally {
+                System.out.flush();
+                System.err.flush();
+            }
+        });
+
+        var thread = new Thread(task, "main");
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            return timeout == null ? task.get() : task.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            stop(thread);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop(thread);
+        } catch (ExecutionException e) {
+            // The program's exceptions are reported by invokeMain, this is an error in the runner itself
+            throw new RuntimeException("Could not run " + program.className(), e.getCause());
+        }
+
+        return TIMEOUT_RETURN_VALUE;
+    }
+
+    private ProcessOutputAsString runSeparately(Program program, List<String> args, String input) {
+        try {
+            var stdin = Files.createTempFile("jmm-in", null);
+            var stdout = Files.createTempFile("jmm-out", null);
+            var stderr = Files.createTempFile("jmm-err", null);
+
+            try {
+                if (input != null)
+                    Files.writeString(stdin, input);
+
+                int returnValue = launch(program, args, builder -> builder.redirectInput(stdin.toFile())
+                        .redirectOutput(stdout.toFile()).redirectError(stderr.toFile()));
+
+                var err = Files.readString(stderr, Charset.defaultCharset());
+
+                if (returnValue == TIMEOUT_RETURN_VALUE)
+                    err += timeoutMessage();
+
+                return new ProcessOutputAsString(returnValue, Files.readString(stdout, Charset.defaultCharset()), err);
+            } finally {
+                Files.deleteIfExists(stdin);
+                Files.deleteIfExists(stdout);
+                Files.deleteIfExists(stderr);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not run " + program.className(), e);
+        }
+    }
+
+    // Runs main in a new JVM, with the class file written to a temporary folder, and kills it when it takes too long
+    private int launch(Program program, List<String> args, Consumer<ProcessBuilder> setup) {
+        Path folder = null;
+        Process process = null;
+
+        try {
+            folder = Files.createTempDirectory("jmm-run");
+            var classFile = folder.resolve(program.className().replace('.', '/') + ".class");
+            Files.createDirectories(classFile.getParent());
+            Files.write(classFile, program.classBytes());
+
+            var command = new ArrayList<String>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(String.join(File.pathSeparator, classpath) + File.pathSeparator + folder);
+            command.add(program.className());
+            command.addAll(args);
+
+            var builder = new ProcessBuilder(command);
+            setup.accept(builder);
+            process = builder.start();
+
+            if (timeout == null)
+                return process.waitFor();
+
+            if (process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS))
+                return process.exitValue();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not run " + program.className(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Killed before the folder goes, the class file is still open while the program runs
+            if (process != null && process.isAlive())
+                stop(process);
+
+            if (folder != null)
+                delete(folder);
+        }
+
+        return TIMEOUT_RETURN_VALUE;
+    }
+
+    private static void stop(Process process) {
+        process.destroyForcibly();
+
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void delete(Path folder) {
+        try (var files = Files.walk(folder)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Left for the system to clean up with its other temporary files
+        }
+    }
+
+    private String timeoutMessage() {
+        return "Program timed out after " + timeout.toMillis() + " ms\n";
+    }
+
+    private int invokeMain(Program program, List<String> args, PrintStream err) {
+        try (var loader = new ProgramClassLoader(program, classpath.stream().map(JasminRunner::toURL).toArray(URL[]::new))) {
+            try {
+                var main = Class.forName(program.className(), true, loader).getMethod("main", String[].class);
+                main.invoke(null, (Object) args.toArray(String[]::new));
+            } finally {
+                loader.closeHelpers();
+            }
+
+            return 0;
+        } catch (InvocationTargetException e) {
+            // A program stopped on timeout ends quietly
+            if (e.getCause() instanceof ThreadDeath death)
+                throw death;
+
+            err.print("Exception in thread \"main\" ");
+            e.getCause().printStackTrace(err);
+        } catch (ReflectiveOperationException | IOException | LinkageError e) {
+            err.print("Error: could not run main class: ");
+            e.printStackTrace(err);
+        }
+
+        return 1;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void stop(Thread thread) {
+        thread.interrupt();
+
+        // Programs rarely check for interrupts, a program stuck in a loop can only be stopped this way. Only JVMs that
+        // support it run programs in this JVM
+        thread.stop();
+    }
+
+    // The standard streams are replaced once, the replacements forward to the streams of the program running on the
+    // current thread, or to the original streams on any other thread
+    private static synchronized void redirect() {
+        if (System.out != redirectedOut) {
+            inheritedOut = System.out;
+            redirectedOut = new PrintStream(new RedirectedOutputStream(STDOUT, inheritedOut), true);
+            System.setOut(redirectedOut);
+        }
+
+        if (System.err != redirectedErr) {
+            inheritedErr = System.err;
+            redirectedErr = new PrintStream(new RedirectedOutputStream(STDERR, inheritedErr), true);
+            System.setErr(redirectedErr);
+        }
+
+        if (System.in != redirectedIn) {
+            inheritedIn = System.in;
+            redirectedIn = new RedirectedInputStream(STDIN, inheritedIn);
+            System.setIn(redirectedIn);
+        }
+    }
+
+    private static URL toURL(String path) {
+        try {
+            return new File(path).toURI().toURL();
+        } catch (MalformedURLException e) {
+            throw new RuntimeException("Invalid classpath entry '" + path + "'", e);
+        }
+    }
+
+    // Defines the program class from memory and the helper classes from the classpath, but never the compiler's
+    private static class ProgramClassLoader extends URLClassLoader {
+        private final Program program;
+        private final List<Class<?>> helpers = new ArrayList<>();
+
+        ProgramClassLoader(Program program, URL[] classpath) {
+            super(classpath, ClassLoader.getPlatformClassLoader());
+            this.program = program;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if (name.equals(program.className()))
+                return defineClass(name, program.classBytes(), 0, program.classBytes().length);
+
+            var helper = super.findClass(name);
+            helpers.add(helper);
+
+            return helper;
+        }
+
+        // Helpers that buffer output until the JVM exits, like io, flush it in a static close method instead. They are
+        // closed in the reverse order they were loaded in, so the program's output comes before any report about it
+        void closeHelpers() throws ReflectiveOperationException {
+            for (int i = helpers.size() - 1; i >= 0; i--) {
+                var helper = helpers.get(i);
+                Method close;
+
+                try {
+                    close = helper.getDeclaredMethod("close");
+                } catch (NoSuchMethodException e) {
+                    continue;
+                }
+
+                if (Modifier.isStatic(close.getModifiers())) {
+                    close.setAccessible(true);
+                    close.invoke(null);
+                }
+            }
+        }
+    }
+
+    private static class RedirectedOutputStream extends OutputStream {
+        private final ThreadLocal<OutputStream> target;
+        private final OutputStream fallback;
+
+        RedirectedOutputStream(ThreadLocal<OutputStream> target, OutputStream fallback) {
+            this.target = target;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            stream().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            stream().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            stream().flush();
+        }
+
+        private OutputStream stream() {
+            var stream = target.get();
+            return stream == null ? fallback : stream;
+        }
+    }
+
+    private static class RedirectedInputStream extends InputStream {
+        private final ThreadLocal<InputStream> target;
+        private final InputStream fallback;
+
+        RedirectedInputStream(ThreadLocal<InputStream> target, InputStream fallback) {
+            this.target = target;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return stream().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return stream().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return stream().available();
+        }
+
+        private InputStream stream() {
+            var stream = target.get();
+            return stream == null ? fallback : stream;
+        }
+    }
+
+    // System.out flushes every line, programs that print a lot are much faster when their output is written in blocks.
+    // Only draining writes the output, so it is drained when the program reads, prints an error or ends, regularly
+    // while it runs, and at the end of every line when the output is a terminal, where it is read as it is printed
+    private static class HeldOutputStream extends BufferedOutputStream {
+        private final boolean lineBuffered;
+
+        HeldOutputStream(OutputStream out, boolean lineBuffered) {
+            super(out, 1 << 16);
+            this.lineBuffered = lineBuffered;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+
+            if (lineBuffered && len > 0 && b[off + len - 1] == '\n')
+                drain();
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            super.write(b);
+
+            if (lineBuffered && b == '\n')
+                drain();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        synchronized void drain() throws IOException {
+            super.flush();
+        }
+
+        void drainQuietly() {
+            try {
+                drain();
+            } catch (IOException e) {
+                // The output was closed, there is nowhere left to write it
+            }
+        }
+    }
+
+    private static class DrainingOutputStream extends OutputStream {
+        private final HeldOutputStream held;
+        private final OutputStream out;
+
+        DrainingOutputStream(HeldOutputStream held, OutputStream out) {
+            this.held = held;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            held.drain();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            held.drain();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static class DrainingInputStream extends InputStream {
+        private final HeldOutputStream held;
+        private final InputStream in;
+
+        DrainingInputStream(HeldOutputStream held, InputStream in) {
+            this.held = held;
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            held.drain();
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            held.drain();
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+    }
+
+    // Gives out at most one line per read, like a person typing, so readers that buffer do not take the next lines
+    private static class LineInputStream extends ByteArrayInputStream {
+        LineInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            int end = pos;
+
+            while (end < count && end - pos < len)
+                if (buf[end++] == '\n')
+                    break;
+
+            return end == pos ? super.read(b, off, len) : super.read(b, off, end - pos);
+        }
+
+        @Override
+        public synchronized int available() {
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+package pt.up.fe.comp2023;
+
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts an ANTLR parse tree into {@link CompactJmmNode}s, giving the same tree as the course converter.
+ * <p>
+ * The kind, hierarchy and attribute fields of each context class are found by reflection once and then reused for
+ * every node of that class.
+ */
+class JmmNodeBuilder {
+
+    private record NodeClass(String kind, List<String> hierarchy, Field[] fields, boolean[] tokens) {
+    }
+
+    private static final ClassValue<NodeClass> NODE_CLASSES = new ClassValue<>() {
+        @Override
+        protected NodeClass computeValue(Class<?> type) {
+            var hierarchy = new ArrayList<String>();
+            var fields = new ArrayList<Field>();
+
+            for (var current = type; !current.equals(ParserRuleContext.class); current = current.getSuperclass()) {
+                hierarchy.add(getKind(current));
+
+                for (var field : current.getDeclaredFields())
+                    if (Modifier.isPublic(field.getModifiers()))
+                        fields.add(field);
+            }
+
+            var tokens = new boolean[fields.size()];
+            for (int i = 0; i < tokens.length; i++)
+                tokens[i] = fields.get(i).getType().isAssignableFrom(Token.class);
+
+            return new NodeClass(hierarchy.get(0), Collections.unmodifiableList(hierarchy),
+                    fields.toArray(Field[]::new), tokens);
+        }
+    };
+
+    private record PendingAttribute(JmmNode node, String attribute, ParseTree value) {
+    }
+
+    private final TokenStream tokens;
+    private final Map<ParseTree, JmmNode> converted = new IdentityHashMap<>();
+    private final List<PendingAttribute> pending = new ArrayList<>();
+
+    private JmmNodeBuilder(Parser parser) {
+        this.tokens = parser.getTokenStream();
+    }
+
+    static JmmNode build(ParserRuleContext tree, Parser parser) {
+        var builder = new JmmNodeBuilder(parser);
+        var root = builder.convert(tree);
+
+        // Attributes holding other rules can only be resolved once every node exists
+        for (var attribute : builder.pending) {
+            var node = builder.converted.get(attribute.value());
+
+            if (node != null)
+                attribute.node().putObject(attribute.attribute(), node);
+        }
+
+        return root;
+    }
+
+    private CompactJmmNode convert(ParserRuleContext context) {
+        var nodeClass = NODE_CLASSES.get(context.getClass());
+        var node = new CompactJmmNode(nodeClass.kind(), nodeClass.hierarchy(), nodeClass.fields().length);
+
+        var interval = context.getSourceInterval();
+        var start = tokens.get(interval.a);
+        var end = tokens.get(interval.b);
+        node.setPosition(start.getLine(), start.getCharPositionInLine(), end.getLine(), end.getCharPositionInLine());
+
+        addAttributes(node, context, nodeClass);
+
+        // Labels only refer to children, so nodes are only tracked once some attribute waits for them
+        if (!pending.isEmpty())
+            converted.put(context, node);
+
+        for (int i = 0; i < context.getChildCount(); i++)
+            if (context.getChild(i) instanceof ParserRuleContext child)
+                node.add(convert(child));
+
+        return node;
+    }
+
+    private void addAttributes(CompactJmmNode node, ParserRuleContext context, NodeClass nodeClass) {
+        var fields = nodeClass.fields();
+
+        for (int i = 0; i < fields.length; i++) {
+            var name = fields[i].getName();
+            Object value;
+
+            try {
+                value = fields[i].get(context);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Could not access field '" + name + "' from node " + context);
+            }
+
+            if (nodeClass.tokens()[i]) {
+                // Missing tokens are left out, like the course converter does
+                if (value != null)
+                    node.put(name, ((Token) value).getText());
+                continue;
+            }
+
+            value = processValue(value);
+            node.putObject(name, value);
+
+            if (value instanceof ParseTree tree)
+                pending.add(new PendingAttribute(node, name, tree));
+        }
+    }
+
+    private static Object processValue(Object value) {
+        if (value instanceof Token token)
+            return token.getText();
+
+        if (value instanceof List<?> list) {
+            var processed = new ArrayList<>(list.size());
+
+            for (var element : list)
+                processed.add(processValue(element));
+
+            return processed;
+        }
+
+        return value;
+    }
+
+    private static String getKind(Class<?> type) {
+        var className = type.getSimpleName();
+
+        if (!className.endsWith("Context"))
+            throw new RuntimeException("Expected classname to end with 'Context' " + className);
+
+        return className.substring(0, className.length() - "Context".length());
+    }
+}
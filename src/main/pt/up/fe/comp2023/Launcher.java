@@ -6,16 +6,22 @@ import pt.up.fe.comp.jmm.ollir.OllirResult;
 import pt.up.fe.comp.jmm.parser.JmmParserResult;
 import pt.up.fe.comp.jmm.report.Report;
 import pt.up.fe.comp.jmm.report.ReportType;
+import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp.jmm.report.StageResult;
 import pt.up.fe.comp2023.analysis.Analyzer;
 import pt.up.fe.comp2023.backend.Backend;
 import pt.up.fe.comp2023.backend.JasminOptimizer;
 import pt.up.fe.comp2023.optimization.Optimizer;
-import pt.up.fe.specs.util.SpecsIo;
+import pt.up.fe.comp2023.optimization.Profile;
 import pt.up.fe.specs.util.SpecsSystem;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Launcher {
@@ -35,18 +41,56 @@ public class Launcher {
             throw new RuntimeException("Expected a path to an existing input file, got '" + inputFile + "'.");
         }
 
-        // Read contents of input file
-        String code = SpecsIo.read(inputFile);
+        // The profile written by a run of the program compiled with --profile=<file>
+        if (config.containsKey(Profile.CONFIG_KEY) && !new File(config.get(Profile.CONFIG_KEY)).isFile()) {
+            throw new RuntimeException("Expected a path to an existing profile, got '" + config.get(Profile.CONFIG_KEY) + "'.");
+        }
+
+        // An unchanged program compiled with the same options is run straight from the cache
+        CompilationCache cache = null;
+        String cacheKey = null;
+
+        if (config.containsKey("cache")) {
+            cache = new CompilationCache(Path.of(config.get("cache")), Long.parseLong(config.get("cacheSize")) << 20);
+
+            try {
+                cacheKey = cache.key(Files.readAllBytes(inputFile.toPath()), config);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read input file '" + inputFile + "'.", e);
+            }
+
+            var cached = cache.get(cacheKey, config);
+            reports(config, List.of(new Report(ReportType.DEBUG, Stage.OTHER, -1, -1, cache.getStats().toString())));
+
+            if (cached.isPresent()) {
+                exit(new JasminRunner().runInherited(cached.get(), List.of()));
+                return;
+            }
+        }
 
         // Instantiate JmmParser
         SimpleParser parser = new SimpleParser();
 
-        // Parse stage
-        JmmParserResult parserResult = parser.parse(code, config);
+        // Parse stage, reading the input file straight into the lexer
+        JmmParserResult parserResult = parser.parse(inputFile, config);
 
         // Check if there are parsing errors
         if (reports(config, parserResult.getReports())) return;
 
+        // A program that changed still reuses the cached code of the methods that did not
+        if (cache != null) {
+            var compiler = new IncrementalCompiler(cache);
+            JasminResult jasminResult = compiler.compile(parserResult);
+
+            if (reports(config, jasminResult.getReports())) return;
+
+            if (!hasWarnings(parserResult, jasminResult))
+                jasminResult = cache.put(cacheKey, compiler.getOllirCode(), jasminResult);
+
+            exit(new JasminRunner().runInherited(jasminResult, List.of()));
+            return;
+        }
+
         // ... add remaining stages
         Analyzer analyzer = new Analyzer();
         JmmSemanticsResult semanticsResult = analyzer.semanticAnalysis(parserResult);
@@ -64,7 +108,7 @@ public class Launcher {
         Backend backend = new Backend();
         JasminResult jasminResult = backend.toJasmin(ollirResult);
 
-        if (reports(config, jasminResult.getReports()) || code == null) return;
+        if (reports(config, jasminResult.getReports())) return;
 
         if (config.get("optimize").equals("true")) {
             JasminOptimizer jasminOptimizer = new JasminOptimizer();
@@ -73,7 +117,14 @@ public class Launcher {
             if (reports(config, jasminResult.getReports())) return;
         }
 
-        jasminResult.run();
+        // The program runs in this JVM, it is not worth starting another one
+        exit(new JasminRunner().runInherited(jasminResult, List.of()));
+    }
+
+    // A program that threw or timed out makes the compiler fail too
+    private static void exit(int status) {
+        if (status != 0)
+            System.exit(status);
     }
 
     private static Map<String, String> parseArgs(String[] args) {
@@ -81,15 +132,40 @@ public class Launcher {
         Map<String, String> config = new HashMap<>();
         config.put("optimize", "false");
         config.put("registerAllocation", "-1");
+        config.put("unrollFactor", "4");
         config.put("debug", "false");
+        config.put("parallel", "false");
+        config.put("cacheSize", Long.toString(CompilationCache.DEFAULT_MAX_SIZE >> 20));
 
         for (var arg : args) {
             if (arg.equals("-o") || arg.equals("--optimize"))
                 config.put("optimize", "true");
             else if (arg.startsWith("-r=") || arg.startsWith("--registers="))
                 config.put("registerAllocation", arg.split("=")[1]);
+            else if (arg.startsWith("-u=") || arg.startsWith("--unroll="))
+                config.put("unrollFactor", arg.split("=")[1]);
+            else if (arg.equals("-p") || arg.equals("--parallel"))
+                config.put("parallel", "true");
+            else if (arg.startsWith("-p=") || arg.startsWith("--parallel=")) {
+                config.put("parallel", "true");
+                config.put("parallelism", arg.split("=")[1]);
+            }
+            else if (arg.equals("--profile"))
+                config.put("profile", "true");
+            else if (arg.startsWith("--profile=")) {
+                config.put("profile", "true");
+                config.put("profileFile", arg.split("=")[1]);
+            }
+            else if (arg.startsWith("--profile-use="))
+                config.put(Profile.CONFIG_KEY, arg.split("=")[1]);
             else if (arg.equals("-d") || arg.equals("--debug"))
                 config.put("debug", "true");
+            else if (arg.equals("-c") || arg.equals("--cache"))
+                config.put("cache", CompilationCache.getDefaultFolder().toString());
+            else if (arg.startsWith("-c=") || arg.startsWith("--cache="))
+                config.put("cache", arg.split("=")[1]);
+            else if (arg.startsWith("--cache-size="))
+                config.put("cacheSize", arg.split("=")[1]);
             else if (arg.startsWith("-i=") || arg.startsWith("--input="))
                 config.put("inputFile", arg.split("=")[1]);
             else
@@ -104,6 +180,16 @@ public class Launcher {
         return config;
     }
 
+    // Warnings are only printed when compiling, so programs that have them are not cached
+    private static boolean hasWarnings(StageResult... results) {
+        for (var result : results)
+            for (var report : result.getReports())
+                if (report.getType() == ReportType.WARNING)
+                    return true;
+
+        return false;
+    }
+
     private static boolean reports(Map<String, String> config, Collection<Report> reports) {
         boolean hasErrors = false;
         boolean debug = Boolean.parseBoolean(config.get("debug"));
@@ -0,0 +1,172 @@
+package pt.up.fe.comp2023;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.Vocabulary;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.LexerATNSimulator;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionContextCache;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.dfa.DFAState;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DFA and prediction context cache shared by every parse, with lexer and parser instances reused per thread.
+ * <p>
+ * The cache grows with the inputs it sees, so it is dropped as a whole once it holds more than a given number of DFA
+ * states.
+ */
+public class ParserCache {
+    public static final int DEFAULT_MAX_DFA_STATES = 50000;
+
+    private static final ParserCache INSTANCE = new ParserCache();
+
+    // Replaced as a whole on clear, so a parse running on another thread keeps a consistent view
+    private record Shared(DFA[] lexerDFA, DFA[] parserDFA, PredictionContextCache contextCache) {
+        static Shared create() {
+            return new Shared(newDFA(JavammLexer._ATN), newDFA(JavammParser._ATN), new PredictionContextCache());
+        }
+
+        int states() {
+            int states = 0;
+
+            for (var dfa : lexerDFA)
+                states += dfa.states.size();
+
+            for (var dfa : parserDFA)
+                states += dfa.states.size();
+
+            return states;
+        }
+    }
+
+    public record Stats(int dfaStates, int contexts, long hits, long misses, long clears) {
+        public double hitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Parser cache: %d DFA states, %d prediction contexts, %.1f%% DFA hit rate, %d clears",
+                    dfaStates, contexts, hitRate() * 100, clears);
+        }
+    }
+
+    private volatile Shared shared = Shared.create();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong clears = new AtomicLong();
+    private final ThreadLocal<Instances> instances = ThreadLocal.withInitial(Instances::new);
+
+    public static ParserCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the lexer and parser of the current thread, reset to read the given input.
+     */
+    public Instances acquire(CharStream input) {
+        var current = instances.get();
+        current.reset(shared, input);
+
+        return current;
+    }
+
+    /**
+     * Drops the references to the last input and clears the cache if it went over the limit.
+     */
+    public void release(Instances instances, int maxStates) {
+        instances.release();
+
+        if (maxStates > 0 && shared.states() > maxStates)
+            clear();
+    }
+
+    public void clear() {
+        shared = Shared.create();
+        clears.incrementAndGet();
+    }
+
+    public Stats getStats() {
+        var current = shared;
+        return new Stats(current.states(), current.contextCache().size(), hits.sum(), misses.sum(), clears.get());
+    }
+
+    private static DFA[] newDFA(ATN atn) {
+        var dfa = new DFA[atn.getNumberOfDecisions()];
+
+        for (int i = 0; i < dfa.length; i++)
+            dfa[i] = new DFA(atn.getDecisionState(i), i);
+
+        return dfa;
+    }
+
+    private void count(DFAState state) {
+        if (state == null)
+            misses.increment();
+        else
+            hits.increment();
+    }
+
+    public class Instances {
+        // The parser reads the first token as soon as it is given a stream, so the lexer starts on an empty input
+        public final JavammLexer lexer = new JavammLexer(new ANTLRInputStream(""));
+        public final JavammParser parser = new JavammParser(new CommonTokenStream(lexer)) {
+            @Override
+            public Vocabulary getVocabulary() {
+                return DISPLAY_VOCABULARY;
+            }
+        };
+        private Shared current;
+
+        private void reset(Shared shared, CharStream input) {
+            // Interpreters are bound to a DFA array, so they are only rebuilt after the cache is cleared
+            if (current != shared) {
+                current = shared;
+                lexer.setInterpreter(new CountingLexerSimulator(lexer, shared));
+                parser.setInterpreter(new CountingParserSimulator(parser, shared));
+            }
+
+            // A token stream cannot be rewound once it reached EOF in this ANTLR version, so only it is created per parse
+            lexer.setInputStream(input);
+            parser.setTokenStream(new CommonTokenStream(lexer));
+        }
+
+        private void release() {
+            lexer.setInputStream(null);
+            parser.setTokenStream(null);
+        }
+    }
+
+    private class CountingLexerSimulator extends LexerATNSimulator {
+        CountingLexerSimulator(Lexer lexer, Shared shared) {
+            super(lexer, JavammLexer._ATN, shared.lexerDFA(), shared.contextCache());
+        }
+
+        @Override
+        protected DFAState getExistingTargetState(DFAState s, int t) {
+            var target = super.getExistingTargetState(s, t);
+            count(target);
+            return target;
+        }
+    }
+
+    private class CountingParserSimulator extends ParserATNSimulator {
+        CountingParserSimulator(Parser parser, Shared shared) {
+            super(parser, JavammParser._ATN, shared.parserDFA(), shared.contextCache());
+        }
+
+        @Override
+        protected DFAState getExistingTargetState(DFAState previousD, int t) {
+            var target = super.getExistingTargetState(previousD, t);
+            count(target);
+            return target;
+        }
+    }
+}
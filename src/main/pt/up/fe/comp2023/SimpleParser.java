@@ -1,16 +1,27 @@
 package pt.up.fe.comp2023;
 
-import org.antlr.v4.runtime.ANTLRInputStream;
-import org.antlr.v4.runtime.CommonTokenStream;
-import pt.up.fe.comp.jmm.ast.antlr.AntlrParser;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ast.antlr.ThrowingErrorListener;
 import pt.up.fe.comp.jmm.parser.JmmParser;
 import pt.up.fe.comp.jmm.parser.JmmParserResult;
 import pt.up.fe.comp.jmm.report.Report;
 import pt.up.fe.comp.jmm.report.ReportType;
 import pt.up.fe.comp.jmm.report.Stage;
 
-import java.util.Collections;
+import java.io.File;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * Copyright 2022 SPeCS.
@@ -34,23 +45,65 @@ public class SimpleParser implements JmmParser {
 
     @Override
     public JmmParserResult parse(String jmmCode, String startingRule, Map<String, String> config) {
+        return parse(new ANTLRInputStream(jmmCode), startingRule, config);
+    }
+
+    public JmmParserResult parse(File file, Map<String, String> config) {
+        CharStream input;
+
         try {
-            // Convert code string into a character stream
-            var input = new ANTLRInputStream(jmmCode);
+            input = readInput(file.toPath());
+        } catch (IOException e) {
+            return JmmParserResult.newError(Report.newError(Stage.SYNTATIC, -1, -1, "Could not read input file '" + file + "'", e));
+        }
 
-            // Transform characters into tokens using the lexer
-            var lex = new pt.up.fe.comp2023.JavammLexer(input);
+        return parse(input, getDefaultRule(), config);
+    }
+
+    private JmmParserResult parse(CharStream input, String startingRule, Map<String, String> config) {
+        var cache = ParserCache.getInstance();
+        var instances = cache.acquire(input);
+        var lex = instances.lexer;
+        var parser = instances.parser;
+
+        try {
+            Optional<JmmNode> root = Optional.empty();
+            parser.removeErrorListeners();
 
-            // Wrap lexer around a token stream
-            var tokens = new CommonTokenStream(lex);
+            var twoStage = !config.getOrDefault("predictionMode", "sll").equals("ll");
 
-            // Transforms tokens into a parse tree
-            var parser = new pt.up.fe.comp2023.JavammParser(tokens);
+            if (twoStage) {
+                // SLL prediction is much cheaper and enough for almost every valid program, it bails out on the first error
+                parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+                parser.setErrorHandler(new BailErrorStrategy());
+
+                try {
+                    root = parse(lex, parser, startingRule);
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    if (!isParseCancellation(e))
+                        throw e;
+                }
+            }
+
+            if (root.isEmpty()) {
+                // Either the input has syntax errors or it needs full context, reparse the same tokens with LL
+                parser.reset();
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+                parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+                parser.setErrorHandler(new DefaultErrorStrategy());
+
+                root = parse(lex, parser, startingRule);
+            }
+
+            var reports = new ArrayList<Report>();
+
+            if (Boolean.parseBoolean(config.get("debug")))
+                reports.add(new Report(ReportType.DEBUG, Stage.SYNTATIC, -1, -1, cache.getStats().toString()));
 
             // Convert ANTLR CST to JmmNode AST
-            return AntlrParser.parse(lex, parser, startingRule)
+            return root
                     // If there were no errors and a root node was generated, create a JmmParserResult with the node
-                    .map(root -> new JmmParserResult(root, Collections.emptyList(), config))
+                    .map(node -> new JmmParserResult(node, reports, config))
                     // If there were errors, create an error JmmParserResult without root node
                     .orElseGet(() -> JmmParserResult.newError(new Report(ReportType.ERROR, Stage.SYNTATIC, -1,
                             "There were " + parser.getNumberOfSyntaxErrors() + " syntax errors during parsing, terminating")));
@@ -58,6 +111,53 @@ public class SimpleParser implements JmmParser {
         } catch (Exception e) {
             // There was an uncaught exception during parsing, create an error JmmParserResult without root node
             return JmmParserResult.newError(Report.newError(Stage.SYNTATIC, -1, -1, "Exception during parsing", e));
+        } finally {
+            var limit = config.get("dfaCacheLimit");
+            cache.release(instances, limit == null ? ParserCache.DEFAULT_MAX_DFA_STATES : Integer.parseInt(limit));
         }
     }
+
+    private static Optional<JmmNode> parse(Lexer lex, Parser parser, String startingRule) throws ReflectiveOperationException {
+        lex.removeErrorListeners();
+        lex.addErrorListener(new ThrowingErrorListener());
+
+        var tree = (ParserRuleContext) parser.getClass().getMethod(startingRule).invoke(parser);
+
+        if (parser.getNumberOfSyntaxErrors() > 0)
+            return Optional.empty();
+
+        return Optional.of(JmmNodeBuilder.build(tree, parser));
+    }
+
+    private static CharStream readInput(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            // UTF-8 never needs more chars than bytes, so the file is decoded straight into the array the lexer reads
+            var chars = CharBuffer.allocate((int) channel.size());
+            var decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+            var result = decoder.decode(bytes, chars, true);
+            if (result.isError())
+                result.throwException();
+
+            decoder.flush(chars);
+
+            var input = new ANTLRInputStream(chars.array(), chars.position());
+            input.name = path.toString();
+
+            return input;
+        }
+    }
+
+    private static boolean isParseCancellation(Throwable e) {
+        // The rule is invoked through reflection, so the cancellation arrives wrapped
+        for (; e != null; e = e.getCause())
+            if (e instanceof ParseCancellationException)
+                return true;
+
+        return false;
+    }
 }
@@ -2,6 +2,10 @@ package pt.up.fe.comp2023;
 
 import pt.up.fe.comp.jmm.ast.JmmNode;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Stack;
+
 public final class Utils {
     public static <T> boolean in(T[] arr, T i) {
         for (var x : arr)
@@ -19,4 +23,63 @@ public final class Utils {
 
         return null;
     }
+
+    public static JmmNode copy(JmmNode node) {
+        var attributes = node.getAttributes();
+        var copy = new CompactJmmNode(node.getKind(), node.getHierarchy(), attributes.size());
+
+        for (var attribute : attributes)
+            copy.putObject(attribute, node.getObject(attribute));
+
+        for (var child : node.getChildren())
+            copy.add(copy(child));
+
+        return copy;
+    }
+
+    // Integer or boolean literal value, booleans are 1 for true and 0 for false
+    public static int literalValue(JmmNode node) {
+        if (node instanceof CompactJmmNode compact)
+            return compact.getLiteral();
+
+        var value = node.get("value");
+
+        return switch (value) {
+            case "true" -> 1;
+            case "false" -> 0;
+            default -> Integer.parseInt(value);
+        };
+    }
+
+    public static Set<String> modifiedVariables(JmmNode node) {
+        var r = new HashSet<String>();
+        Stack<JmmNode> stack = new Stack<>();
+        stack.push(node);
+
+        while (!stack.isEmpty()) {
+            var n = stack.pop();
+
+            switch (n.getKind()) {
+                case "VariableDeclaration" -> r.add(n.get("id"));
+                case "AssignmentExpression" -> {
+                    var left = n.getJmmChild(0);
+
+                    if (left.getKind().equals("IdentifierExpression"))
+                        r.add(left.get("id"));
+                }
+                case "UnaryPreOp", "UnaryPostOp" -> {
+                    var child = n.getJmmChild(0);
+
+                    if (child.getKind().equals("IdentifierExpression")
+                        && (n.get("op").equals("++") || n.get("op").equals("--")))
+                        r.add(child.get("id"));
+                }
+            }
+
+            for (var child : n.getChildren())
+                stack.push(child);
+        }
+
+        return r;
+    }
 }
@@ -2,21 +2,35 @@ package pt.up.fe.comp2023.analysis;
 
 import pt.up.fe.comp.jmm.analysis.JmmAnalysis;
 import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
+import pt.up.fe.comp.jmm.ast.JmmNode;
 import pt.up.fe.comp.jmm.parser.JmmParserResult;
 import pt.up.fe.comp.jmm.report.Report;
 import pt.up.fe.comp.jmm.report.ReportType;
 import pt.up.fe.comp.jmm.report.Stage;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public class Analyzer implements JmmAnalysis {
     @Override
     public JmmSemanticsResult semanticAnalysis(JmmParserResult jmmParserResult) {
+        return semanticAnalysis(jmmParserResult, List.of());
+    }
+
+    /**
+     * Analyses the program without checking the given members again. They are still declared in the symbol table, then
+     * removed from the tree, so the later stages do not compile them either.
+     */
+    public JmmSemanticsResult semanticAnalysis(JmmParserResult jmmParserResult, Collection<JmmNode> unchanged) {
         var table = new JmmSymbolTable(jmmParserResult.getRootNode());
+        unchanged.forEach(JmmNode::delete);
+
         List<Report> reports = new ArrayList<>();
+        var debug = Boolean.parseBoolean(jmmParserResult.getConfig().get("debug"));
 
-        reports.add(new Report(ReportType.DEBUG, Stage.SEMANTIC, -1, -1, "Generated AST:\n" + jmmParserResult.getRootNode().toTree()));
+        if (debug)
+            reports.add(new Report(ReportType.DEBUG, Stage.SEMANTIC, -1, -1, "Generated AST:\n" + jmmParserResult.getRootNode().toTree()));
 
         var main = table.getMethod("main");
         if (main != null) {
@@ -30,8 +44,10 @@ public class Analyzer implements JmmAnalysis {
 
         new SemanticAnalysisVisitor(table, reports).visit(jmmParserResult.getRootNode());
 
-        reports.add(new Report(ReportType.DEBUG, Stage.SEMANTIC, -1, -1, "Annotated AST:\n" + jmmParserResult.getRootNode().toTree()));
-        reports.add(new Report(ReportType.DEBUG, Stage.SEMANTIC, -1, -1, "Generated symbol table:\n" + table.print()));
+        if (debug) {
+            reports.add(new Report(ReportType.DEBUG, Stage.SEMANTIC, -1, -1, "Annotated AST:\n" + jmmParserResult.getRootNode().toTree()));
+            reports.add(new Report(ReportType.DEBUG, Stage.SEMANTIC, -1, -1, "Generated symbol table:\n" + table.print()));
+        }
 
         return new JmmSemanticsResult(
             jmmParserResult.getRootNode(),
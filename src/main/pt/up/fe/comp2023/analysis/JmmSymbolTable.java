@@ -5,28 +5,36 @@ import pt.up.fe.comp.jmm.analysis.table.SymbolTable;
 import pt.up.fe.comp.jmm.analysis.table.Type;
 import pt.up.fe.comp.jmm.ast.JmmNode;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.*;
 
 public class JmmSymbolTable implements SymbolTable {
     private final List<String> imports = new ArrayList<>();
     private final List<Symbol> fields = new ArrayList<>();
     private final List<Method> methods = new ArrayList<>();
 
+    // Lookups by name, the first declaration wins like it did with the linear scans
+    private final Map<String, Symbol> fieldsByName = new LinkedHashMap<>();
+    private final Map<String, Method> methodsByName = new LinkedHashMap<>();
+
+    private final List<String> importsView = Collections.unmodifiableList(imports);
+    private final List<Symbol> fieldsView = Collections.unmodifiableList(fields);
+    private List<String> methodNames;
+
     private String className;
     private String superName;
 
     private String packageName;
 
+    private final SymbolTableVisitor visitor = new SymbolTableVisitor(this);
+
     public JmmSymbolTable(JmmNode node) {
-        new SymbolTableVisitor(this).visit(node);
+        // Only class level declarations, the local variables of each method are added when it is analysed
+        visitor.visit(node);
     }
 
     @Override
     public List<String> getImports() {
-        return imports;
+        return importsView;
     }
 
     @Override
@@ -44,32 +52,50 @@ public class JmmSymbolTable implements SymbolTable {
     }
 
     public Method getMethod(String s) {
-        return methods.stream().filter(m -> m.getName().equals(s)).findFirst().orElse(null);
+        return methodsByName.get(s);
+    }
+
+    public boolean hasMethod(String s) {
+        return methodsByName.containsKey(s);
     }
 
     @Override
     public List<Symbol> getFields() {
-        return fields;
+        return fieldsView;
+    }
+
+    public Symbol getField(String s) {
+        return fieldsByName.get(s);
     }
 
     @Override
     public List<String> getMethods() {
-        return methods.stream().map(Method::getName).collect(Collectors.toList());
+        if (methodNames == null)
+            methodNames = methods.stream().map(Method::getName).toList();
+
+        return methodNames;
     }
 
     @Override
     public Type getReturnType(String s) {
-        return methods.stream().filter(m -> Objects.equals(m.getName(), s)).findFirst().map(Method::getReturnType).orElse(null);
+        var method = getMethod(s);
+        return method == null ? null : method.getReturnType();
     }
 
     @Override
     public List<Symbol> getParameters(String s) {
-        return methods.stream().filter(m -> Objects.equals(m.getName(), s)).findFirst().map(Method::getParameters).orElse(null);
+        var method = getMethod(s);
+        return method == null ? null : method.getParameters();
     }
 
     @Override
     public List<Symbol> getLocalVariables(String s) {
-        return methods.stream().filter(m -> Objects.equals(m.getName(), s)).findFirst().map(Method::getLocalVariables).orElse(null);
+        var method = getMethod(s);
+        return method == null ? null : method.getLocalVariables();
+    }
+
+    void declareLocals(JmmNode method) {
+        visitor.declareLocals(method);
     }
 
     public void addImport(String fullImport) {
@@ -78,10 +104,13 @@ public class JmmSymbolTable implements SymbolTable {
 
     public void addField(Symbol field) {
         fields.add(field);
+        fieldsByName.putIfAbsent(field.getName(), field);
     }
 
     public void addMethod(Method method) {
         methods.add(method);
+        methodsByName.putIfAbsent(method.getName(), method);
+        methodNames = null;
     }
 
     public void setClassName(String className) {
@@ -3,26 +3,30 @@ package pt.up.fe.comp2023.analysis;
 import pt.up.fe.comp.jmm.analysis.table.Symbol;
 import pt.up.fe.comp.jmm.analysis.table.Type;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.*;
 import java.util.stream.Collectors;
 
 public class Method {
     private String name;
     private Type returnType;
     private List<Symbol> parameters;
+    private List<Symbol> parametersView;
 
     private List<Symbol> localVariables;
+    private List<Symbol> localVariablesView;
+
+    // Lookups by name, the first declaration wins like it did with the linear scans
+    private final Map<String, Symbol> parametersByName = new HashMap<>();
+    private final Map<String, Symbol> localVariablesByName = new HashMap<>();
 
     private Set<String> modifiers;
 
     public Method(String name, Type returnType, List<Symbol> parameters, List<Symbol> localVariables, Set<String> modifiers) {
         this.name = name;
         this.returnType = returnType;
-        this.parameters = parameters;
-        this.localVariables = localVariables;
+        this.modifiers = modifiers;
+        setParameters(parameters);
+        setLocalVariables(localVariables);
     }
 
     public Method(String name, Type returnType, List<Symbol> parameters, List<Symbol> localVariables) {
@@ -58,19 +62,43 @@ public class Method {
     }
 
     public List<Symbol> getParameters() {
-        return parameters;
+        return parametersView;
+    }
+
+    public Symbol getParameter(String name) {
+        return parametersByName.get(name);
+    }
+
+    public void addParameter(Symbol parameter) {
+        parameters.add(parameter);
+        parametersByName.putIfAbsent(parameter.getName(), parameter);
     }
 
     public void setParameters(List<Symbol> parameters) {
-        this.parameters = parameters;
+        this.parameters = new ArrayList<>();
+        this.parametersView = Collections.unmodifiableList(this.parameters);
+        parametersByName.clear();
+        parameters.forEach(this::addParameter);
     }
 
     public List<Symbol> getLocalVariables() {
-        return localVariables;
+        return localVariablesView;
+    }
+
+    public Symbol getLocalVariable(String name) {
+        return localVariablesByName.get(name);
+    }
+
+    public void addLocalVariable(Symbol localVariable) {
+        localVariables.add(localVariable);
+        localVariablesByName.putIfAbsent(localVariable.getName(), localVariable);
     }
 
     public void setLocalVariables(List<Symbol> localVariables) {
-        this.localVariables = localVariables;
+        this.localVariables = new ArrayList<>();
+        this.localVariablesView = Collections.unmodifiableList(this.localVariables);
+        localVariablesByName.clear();
+        localVariables.forEach(this::addLocalVariable);
     }
 
     public Set<String> getModifiers() {
@@ -1,27 +1,37 @@
 package pt.up.fe.comp2023.analysis;
 
+import pt.up.fe.comp.jmm.analysis.table.Symbol;
 import pt.up.fe.comp.jmm.ast.AJmmVisitor;
 import pt.up.fe.comp.jmm.ast.JmmNode;
 import pt.up.fe.comp.jmm.report.Report;
 import pt.up.fe.comp.jmm.report.ReportType;
 import pt.up.fe.comp.jmm.report.Stage;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.*;
 
 import static pt.up.fe.comp2023.Constants.*;
 import static pt.up.fe.comp2023.Utils.in;
 
 class SemanticAnalysisVisitor extends AJmmVisitor<String, String> {
+    private record Declaration(String type, String origin) {
+    }
+
     private final List<Report> reports;
     private final JmmSymbolTable table;
 
+    // Simple names of the imported classes
+    private final Set<String> importedNames = new HashSet<>();
+
+    // Every name visible in each method, built the first time the method is seen
+    private final Map<String, Map<String, Declaration>> scopes = new HashMap<>();
+
     SemanticAnalysisVisitor(JmmSymbolTable table, List<Report> reports) {
         this.table = table;
         this.reports = reports;
+
+        for (var imp : table.getImports())
+            importedNames.add(imp.substring(imp.lastIndexOf('.') + 1));
+
         buildVisitor();
     }
 
@@ -54,7 +64,7 @@ class SemanticAnalysisVisitor extends AJmmVisitor<String, String> {
         addVisit("WhileStatement", this::checkWhile);
         addVisit("DoStatement", this::checkDo);
         addVisit("ForStatement", this::checkFor);
-        addVisit("ForTerm", this::checkForTerminal);
+        addVisit("For_term", this::checkForTerminal);
         addVisit("ForEachStatement", this::checkForEach);
         addVisit("SwitchStatement", this::checkSwitch);
         addVisit("CaseStatement", this::checkCase);
@@ -66,6 +76,9 @@ class SemanticAnalysisVisitor extends AJmmVisitor<String, String> {
     public String visit(JmmNode jmmNode, String data) {
         data = jmmNode.getOptional("methodName").orElse(jmmNode.getKind().equals("ConstructorDeclaration") ? "<constructor>" : data);
 
+        if (jmmNode.getKind().equals("MethodDeclaration") || jmmNode.getKind().equals("ConstructorDeclaration"))
+            table.declareLocals(jmmNode);
+
         for (var child : jmmNode.getChildren())
             visit(child, data);
 
@@ -88,47 +101,15 @@ class SemanticAnalysisVisitor extends AJmmVisitor<String, String> {
 
     protected String checkDeclared(JmmNode node, String context) {
         var id = node.get("id");
-        String type = null;
-        var method = table.getMethod(context);
-        var isStatic = method != null && method.getModifiers().contains("static");
+        var declaration = scope(context).get(id);
+        String type;
 
-        for (var imp : table.getImports()) {
-            var split = imp.split("\\.");
-            if (split[split.length - 1].equals(id)) {
-                type = id;
-                node.put("origin", "import");
-                break;
-            }
-        }
-        // TODO: static fields
-        if (!isStatic)
-            for (var field : table.getFields())
-                if (field.getName().equals(id)) {
-                    type = field.getType().print();
-                    node.put("origin", "field");
-                    break;
-                }
-        for (var parameter : table.getParametersTry(context).orElse(new ArrayList<>()))
-            if (parameter.getName().equals(id)) {
-                type = parameter.getType().print();
-                node.put("origin", "parameter");
-                break;
-            }
-        for (var local : table.getLocalVariablesTry(context).orElse(new ArrayList<>()))
-            if (local.getName().equals(id)) {
-                type = local.getType().print();
-                node.put("origin", "local");
-                break;
-            }
-
-        if (in(UNIVERSAL_IMPORTS, id)) {
-            type = id;
-            node.put("origin", "import");
-        }
-
-        if (type == null) {
+        if (declaration == null) {
             error(node, "Cannot access variable '" + id + "' without declaration");
             type = "{unknown}";
+        } else {
+            type = declaration.type();
+            node.put("origin", declaration.origin());
         }
 
         node.put("type", type);
@@ -244,7 +225,7 @@ class SemanticAnalysisVisitor extends AJmmVisitor<String, String> {
         var prop = node.get("member");
 
         if (typesMatch(type, table.getClassName())) {
-            var field = table.getFields().stream().filter(s -> s.getName().equals(prop)).findFirst();
+            var field = Optional.ofNullable(table.getField(prop));
 
             if (field.isEmpty() && table.getSuper().isEmpty()) {
                 error(node, "Cannot access property '" + prop + "' on object of type '" + type + "'");
@@ -312,7 +293,7 @@ class SemanticAnalysisVisitor extends AJmmVisitor<String, String> {
             error(node, "Cannot call method '" + method + "' on expression of type '" + type + "'");
 
         if (table.getClassName().equals(type)) {
-            if (table.getMethods().contains(method)) {
+            if (table.hasMethod(method)) {
                 var expected = table.getParameters(method).stream().map(s -> s.getType().print()).toList();
 
                 node.put("type", table.getReturnType(method).print());
@@ -448,6 +429,9 @@ class SemanticAnalysisVisitor extends AJmmVisitor<String, String> {
     }
 
     protected String checkForTerminal(JmmNode node, String context) {
+        if (node.getNumChildren() == 0)
+            return context;
+
         var type = node.getJmmChild(0).get("type");
         if (!typesMatch(type, "boolean"))
             error(node, "Cannot use expression of type '" + type + "' as for statement terminal");
@@ -518,15 +502,48 @@ class SemanticAnalysisVisitor extends AJmmVisitor<String, String> {
         var type = node.get("id");
         node.put("type", type);
 
-        if (!type.equals(table.getClassName()) && !in(UNIVERSAL_IMPORTS, type) && table.getImports().stream().map(i -> {
-            var split = i.split("\\.");
-            return split[split.length - 1];
-        }).noneMatch(i -> i.equals(type)))
+        if (!type.equals(table.getClassName()) && !in(UNIVERSAL_IMPORTS, type) && !importedNames.contains(type))
             error(node, "Cannot use '" + type + "' as a type without importing it");
 
         return context;
     }
 
+    private Map<String, Declaration> scope(String context) {
+        return scopes.computeIfAbsent(context, this::buildScope);
+    }
+
+    private Map<String, Declaration> buildScope(String context) {
+        var scope = new HashMap<String, Declaration>();
+        var method = table.getMethod(context);
+        var isStatic = method != null && method.getModifiers().contains("static");
+
+        // Each kind shadows the ones before it, within a kind the first declaration wins
+        for (var name : importedNames)
+            scope.put(name, new Declaration(name, "import"));
+
+        // TODO: static fields
+        if (!isStatic)
+            declare(scope, table.getFields(), "field");
+
+        if (method != null) {
+            declare(scope, method.getParameters(), "parameter");
+            declare(scope, method.getLocalVariables(), "local");
+        }
+
+        for (var name : UNIVERSAL_IMPORTS)
+            scope.put(name, new Declaration(name, "import"));
+
+        return scope;
+    }
+
+    private void declare(Map<String, Declaration> scope, List<Symbol> symbols, String origin) {
+        var declared = new HashSet<String>();
+
+        for (var symbol : symbols)
+            if (declared.add(symbol.getName()))
+                scope.put(symbol.getName(), new Declaration(symbol.getType().print(), origin));
+    }
+
     /**
      * @return `true` if `type1` matches `type2`
      */
@@ -540,10 +557,7 @@ class SemanticAnalysisVisitor extends AJmmVisitor<String, String> {
             // First is Object and second is not primitive
             || type1.equals("Object") && !in(PRIMITIVE_TYPES, type2)
             // Both are imported
-            || table.getImports().stream().map(i -> {
-                var split = i.split("\\.");
-                return split[split.length - 1];
-            }).collect(Collectors.toSet()).containsAll(List.of(type1, type2))
+            || importedNames.contains(type1) && importedNames.contains(type2)
             // First is superclass of second
             || table.getSuper() != null && table.getSuper().equals(type1) && table.getClassName().equals(type2)
             // Both equal
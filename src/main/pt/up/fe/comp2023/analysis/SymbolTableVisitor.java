@@ -5,13 +5,18 @@ import pt.up.fe.comp.jmm.analysis.table.Type;
 import pt.up.fe.comp.jmm.ast.AJmmVisitor;
 import pt.up.fe.comp.jmm.ast.JmmNode;
 
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 class SymbolTableVisitor extends AJmmVisitor<Object, Object> {
     private final JmmSymbolTable table;
 
+    // Methods are declared with their signature only, their bodies are visited later through declareLocals
+    private final Map<JmmNode, Method> methods = new IdentityHashMap<>();
+
     public SymbolTableVisitor(JmmSymbolTable table) {
         this.table = table;
     }
@@ -85,13 +90,27 @@ class SymbolTableVisitor extends AJmmVisitor<Object, Object> {
         table.addMethod(method);
 
         method.setModifiers(new TreeSet<>(node.getObjectAsList("modifiers", String.class)));
+        methods.put(node, method);
 
         for (var child : node.getChildren())
-            visit(child, method);
+            if (isSignature(child))
+                visit(child, method);
 
         return method;
     }
 
+    void declareLocals(JmmNode node) {
+        var method = methods.get(node);
+
+        for (var child : node.getChildren())
+            if (!isSignature(child))
+                visit(child, method);
+    }
+
+    private boolean isSignature(JmmNode node) {
+        return node.getKind().equals("ParameterList") || node.getKind().endsWith("Type");
+    }
+
     private Type visitType(JmmNode node, Object context) {
         Type type;
 
@@ -135,7 +154,7 @@ class SymbolTableVisitor extends AJmmVisitor<Object, Object> {
 
             Symbol parameter = new Symbol(type, params.get(i).toString());
 
-            method.getParameters().add(parameter);
+            method.addParameter(parameter);
         }
 
         return method.getParameters();
@@ -144,7 +163,7 @@ class SymbolTableVisitor extends AJmmVisitor<Object, Object> {
     private Symbol visitVariable(JmmNode node, Object context) {
         var symbol = new Symbol((Type) visit(node.getJmmChild(0)), node.get("id"));
 
-        if (context instanceof Method) ((Method) context).getLocalVariables().add(symbol);
+        if (context instanceof Method) ((Method) context).addLocalVariable(symbol);
         else table.addField(symbol);
 
         return symbol;
@@ -157,7 +176,7 @@ class SymbolTableVisitor extends AJmmVisitor<Object, Object> {
         var id = node.get("id");
 
         var symbol = new Symbol(type, id);
-        ((Method) context).getLocalVariables().add(symbol);
+        ((Method) context).addLocalVariable(symbol);
 
         for (var child : node.getChildren())
             visit(child, context);
@@ -7,16 +7,34 @@ import pt.up.fe.comp.jmm.ollir.OllirResult;
 import pt.up.fe.comp.jmm.report.Report;
 import pt.up.fe.comp.jmm.report.ReportType;
 import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp2023.optimization.Profile;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 public class Backend implements JasminBackend {
 
+    private static final Map<String, String> INVERSE_JUMPS = Map.ofEntries(
+            Map.entry("ifeq", "ifne"), Map.entry("ifne", "ifeq"),
+            Map.entry("iflt", "ifge"), Map.entry("ifge", "iflt"),
+            Map.entry("ifgt", "ifle"), Map.entry("ifle", "ifgt"),
+            Map.entry("if_icmpeq", "if_icmpne"), Map.entry("if_icmpne", "if_icmpeq"),
+            Map.entry("if_icmplt", "if_icmpge"), Map.entry("if_icmpge", "if_icmplt"),
+            Map.entry("if_icmpgt", "if_icmple"), Map.entry("if_icmple", "if_icmpgt"),
+            Map.entry("if_acmpeq", "if_acmpne"), Map.entry("if_acmpne", "if_acmpeq"),
+            Map.entry("ifnull", "ifnonnull"), Map.entry("ifnonnull", "ifnull"));
+
     private static final int DEFAULT_METHOD_STACK_SIZE = 0; // TODO: this is a hack, this value should be 0, it is making an unrelated test fail
     private String superClassName;
     private boolean debugMode;
     private boolean optimize;
+    private boolean parallel;
+    private BlockProfiler profiler;
+    private Profile profile;
+
+    // Each method is generated by its own instance, so the per-method state below is never shared
 
     private int currentMethodStackSize = Backend.DEFAULT_METHOD_STACK_SIZE;
     private int currentMethodStackSizeLimit = Backend.DEFAULT_METHOD_STACK_SIZE;
@@ -24,6 +42,17 @@ public class Backend implements JasminBackend {
     private boolean conditionalOptimized = false;
     private int assignmentRegister = -1;
 
+    public Backend() {
+    }
+
+    private Backend(Backend classBackend) {
+        this.superClassName = classBackend.superClassName;
+        this.debugMode = classBackend.debugMode;
+        this.optimize = classBackend.optimize;
+        this.profiler = classBackend.profiler;
+        this.profile = classBackend.profile;
+    }
+
     @Override
     public JasminResult toJasmin(OllirResult ollirResult) {
 
@@ -32,12 +61,21 @@ public class Backend implements JasminBackend {
 
         this.debugMode = Boolean.parseBoolean(config.get("debug"));
         this.optimize = Boolean.parseBoolean(config.get("optimize"));
+        this.parallel = Boolean.parseBoolean(config.get("parallel"));
+        this.profile = Profile.fromConfig(config);
 
         var ollirClass = ollirResult.getOllirClass();
+        var fileName = config.get("inputFile");
 
-        var jasminCode = this.buildJasminCode(ollirClass, reports, config.get("inputFile"));
+        if (Boolean.parseBoolean(config.get("profile"))) {
+            var sourceName = fileName == null ? ollirClass.getClassName() + ".jmm" : new File(fileName).getName();
+            this.profiler = new BlockProfiler(ollirClass, ollirResult, sourceName, config.get("profileFile"));
+        }
+
+        var jasminCode = this.buildJasminCode(ollirClass, reports, fileName);
 
-        reports.add(new Report(ReportType.DEBUG, Stage.GENERATION, -1, -1, "Generated Jasmin:\n" + jasminCode));
+        if (this.debugMode)
+            reports.add(new Report(ReportType.DEBUG, Stage.GENERATION, -1, -1, "Generated Jasmin:\n" + jasminCode));
 
         return new JasminResult(ollirClass.getClassName(), jasminCode, reports, config);
     }
@@ -82,10 +120,33 @@ public class Backend implements JasminBackend {
         for (Field field : ollirClass.getFields())
             sb.append(this.buildJasminClassField(field, reports)).append('\n');
 
+        if (this.profiler != null)
+            sb.append(this.profiler.buildField());
+
         sb.append('\n');
 
-        for (Method method : ollirClass.getMethods())
-            sb.append(this.buildJasminMethod(method, reports)).append('\n');
+        var methods = ollirClass.getMethods();
+        var methodCode = new String[methods.size()];
+        var methodReports = new ArrayList<List<Report>>();
+
+        for (Method method : methods) {
+            methodReports.add(new ArrayList<>());
+
+            if (this.debugMode) method.show();
+        }
+
+        // Methods are independent of each other, their code and reports are joined in order so the output is the same
+        var range = IntStream.range(0, methods.size());
+        (this.parallel ? range.parallel() : range).forEach(i ->
+                methodCode[i] = new Backend(this).buildJasminMethod(methods.get(i), methodReports.get(i)));
+
+        for (int i = 0; i < methods.size(); i++) {
+            sb.append(methodCode[i]).append('\n');
+            reports.addAll(methodReports.get(i));
+        }
+
+        if (this.profiler != null)
+            sb.append(this.profiler.buildInitializer());
 
         return sb.toString();
     }
@@ -130,8 +191,6 @@ public class Backend implements JasminBackend {
             }
         }
 
-        if (this.debugMode) method.show();
-
         StringBuilder sb = new StringBuilder();
 
         sb.append(".method ");
@@ -140,7 +199,8 @@ public class Backend implements JasminBackend {
 
         var bodyCode = this.buildJasminMethodBody(method, reports);
 
-        if (!method.isConstructMethod()) {
+        // Counters need more stack than the assembler gives constructors by default
+        if (!method.isConstructMethod() || this.profiler != null) {
 
             var varTable = method.getVarTable();
 
@@ -203,23 +263,23 @@ public class Backend implements JasminBackend {
 
         var sb = new StringBuilder();
 
-        boolean hasReturn = false;
+        boolean hasReturn = method.getInstructions().stream().anyMatch(instruction -> instruction.getInstType() == InstructionType.RETURN);
         var varTable = method.getVarTable();
 
-        for (Instruction instruction : method.getInstructions()) {
-
-            if (instruction.getInstType() == InstructionType.RETURN) hasReturn = true;
+        // Counted before the first label, jumps back to the start of the method are not calls
+        if (this.profiler != null)
+            sb.append(this.buildJasminCounterIncrement(this.profiler.getEntryCounter(method)));
 
-            var labels = method.getLabels(instruction);
-            labels.forEach(label -> sb.append(label).append(":\n"));
+        if (this.profile != null && !this.profile.matches(method))
+            reports.add(Report.newWarn(Stage.GENERATION, -1, -1, "The profile does not match the blocks of method " + method.getMethodName() + ", profile a build that uses it to guide its blocks too", new Exception("The profile does not match the blocks of method " + method.getMethodName())));
 
-            sb.append(this.buildJasminInstruction(instruction, varTable, reports)).append('\n');
-
-            if (instruction.getInstType() == InstructionType.CALL && ((CallInstruction) instruction).getReturnType().getTypeOfElement() != ElementType.VOID) {
-                sb.append("\tpop\n");
-                this.changeCurrentMethodStackSizeLimit(-1);
-            }
+        if (this.optimize || this.profile != null) {
+            this.buildJasminBlocks(method, new BlockLayout(method, this.profile, this.profiler == null).getBlocks(), sb, reports);
+        } else {
+            for (Instruction instruction : method.getInstructions())
+                sb.append(this.buildJasminLabelledInstruction(method, instruction, reports)).append('\n');
         }
+
         if (!hasReturn) { // default to have a return
             if (!(method.isConstructMethod() || method.getReturnType().getTypeOfElement() == ElementType.VOID)) {
                 reports.add(Report.newWarn(Stage.GENERATION, -1, -1, "Non-void function must have a return type", new Exception("Non-void function must have a return type")));
@@ -235,6 +295,83 @@ public class Backend implements JasminBackend {
         return sb.toString();
     }
 
+    // The blocks are emitted in layout order, with the jumps their new neighbours need
+    private void buildJasminBlocks(Method method, List<BlockLayout.Block> blocks, StringBuilder sb, List<Report> reports) {
+        var instructions = method.getInstructions();
+
+        for (int i = 0; i < blocks.size(); i++) {
+            var block = blocks.get(i);
+            var next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+
+            if (block.newLabel)
+                sb.append(block.label).append(":\n");
+
+            for (int j = block.start; j < block.end; j++) {
+                var instruction = instructions.get(j);
+                var code = this.buildJasminLabelledInstruction(method, instruction, reports);
+
+                if (j == block.end - 1 && instruction.getInstType() == InstructionType.GOTO && block.target == next) {
+                    // The jump is dropped, but the labels and counter before it stay
+                    sb.append(code, 0, code.lastIndexOf('\n') + 1);
+                    continue;
+                }
+
+                // Threaded jumps go to another block than the one they were generated for
+                if (j == block.end - 1 && block.target != null)
+                    code = Backend.retargetJasminJump(code, block.target.label);
+
+                if (j == block.end - 1 && instruction.getInstType() == InstructionType.BRANCH && block.fallThrough != next) {
+                    var inverted = block.target == next ? Backend.invertJasminBranch(code, block.fallThrough.label) : null;
+                    code = inverted != null ? inverted : code + "\n\tgoto " + block.fallThrough.label;
+                }
+
+                sb.append(code).append('\n');
+            }
+
+            var last = instructions.get(block.end - 1).getInstType();
+
+            if (last != InstructionType.BRANCH && block.fallThrough != null && block.fallThrough != next)
+                sb.append("\tgoto ").append(block.fallThrough.label).append('\n');
+        }
+    }
+
+    private String buildJasminLabelledInstruction(Method method, Instruction instruction, List<Report> reports) {
+
+        var sb = new StringBuilder();
+
+        method.getLabels(instruction).forEach(label -> sb.append(label).append(":\n"));
+
+        var blockCounter = this.profiler == null ? null : this.profiler.getBlockCounter(instruction);
+        if (blockCounter != null)
+            sb.append(this.buildJasminCounterIncrement(blockCounter));
+
+        sb.append(this.buildJasminInstruction(instruction, method.getVarTable(), reports));
+
+        if (instruction.getInstType() == InstructionType.CALL && ((CallInstruction) instruction).getReturnType().getTypeOfElement() != ElementType.VOID) {
+            sb.append("\n\tpop");
+            this.changeCurrentMethodStackSizeLimit(-1);
+        }
+
+        return sb.toString();
+    }
+
+    // Jumps end with their label, which is replaced by the new one
+    private static String retargetJasminJump(String code, String label) {
+        return code.substring(0, code.lastIndexOf(' ') + 1) + label;
+    }
+
+    // Branches end in a single conditional jump, which is replaced by the opposite one to the new label
+    private static String invertJasminBranch(String code, String label) {
+        var start = code.lastIndexOf('\n') + 1;
+        var jump = code.substring(start).trim().split("\\s+");
+        var inverse = jump.length == 2 ? Backend.INVERSE_JUMPS.get(jump[0]) : null;
+
+        if (inverse == null)
+            return null;
+
+        return code.substring(0, start) + '\t' + inverse + ' ' + label;
+    }
+
     private String buildJasminInstruction(Instruction instruction, HashMap<String, Descriptor> varTable, List<Report> reports) {
 
         var sb = new StringBuilder();
@@ -291,6 +428,8 @@ public class Backend implements JasminBackend {
             }
             sb.append("astore");
             this.changeCurrentMethodStackSizeLimit(-1);
+        } else if (this.optimizeJasminAssignInstruction(instruction, op, regNum, sb)) {
+            this.assignmentRegister = -1;
         } else {
             sb.append(this.buildJasminInstruction(instruction.getRhs(), varTable, reports)).append('\n');
 
@@ -311,6 +450,42 @@ public class Backend implements JasminBackend {
         return sb.toString();
     }
 
+    private boolean optimizeJasminAssignInstruction(AssignInstruction instruction, Operand dest, int regNum, StringBuilder sb) {
+
+        // a = a (+|-) c and a = c + a only need an iinc, without loading or storing a
+        if (!(instruction.getRhs() instanceof BinaryOpInstruction rhs) || dest.getType().getTypeOfElement() != ElementType.INT32)
+            return false;
+
+        var opType = rhs.getOperation().getOpType();
+
+        Element other;
+        if (rhs.getLeftOperand() instanceof Operand left && left.getName().equals(dest.getName()) && (opType == OperationType.ADD || opType == OperationType.SUB))
+            other = rhs.getRightOperand();
+        else if (rhs.getRightOperand() instanceof Operand right && right.getName().equals(dest.getName()) && opType == OperationType.ADD)
+            other = rhs.getLeftOperand();
+        else
+            return false;
+
+        if (!(other instanceof LiteralElement literal) || literal.getType().getTypeOfElement() != ElementType.INT32)
+            return false;
+
+        var increment = (opType == OperationType.SUB ? -1 : 1) * Integer.parseInt(literal.getLiteral());
+
+        if (increment < Byte.MIN_VALUE || increment > Byte.MAX_VALUE)
+            return false;
+
+        sb.append("\tiinc ").append(regNum).append(' ').append(increment);
+
+        return true;
+    }
+
+    private String buildJasminCounterIncrement(int counter) {
+        this.changeCurrentMethodStackSizeLimit(BlockProfiler.STACK_SIZE);
+        this.changeCurrentMethodStackSizeLimit(-BlockProfiler.STACK_SIZE);
+
+        return this.profiler.buildCountersLoad() + '\t' + this.buildJasminIntegerPushInstruction(counter) + "\n\tdup2\n\tlaload\n\tlconst_1\n\tladd\n\tlastore\n";
+    }
+
     private String buildJasminIntegerPushInstruction(int value) {
         var sb = new StringBuilder();
         if (value < -1) {
@@ -571,6 +746,15 @@ public class Backend implements JasminBackend {
 
         var cond = instruction.getCondition();
 
+        if (cond instanceof BinaryOpInstruction binaryOp && this.isIntegerComparison(binaryOp))
+            return this.buildJasminComparisonBranch(binaryOp, instruction.getLabel(), varTable, reports);
+
+        if (cond instanceof UnaryOpInstruction unaryOp && unaryOp.getOperation().getOpType() == OperationType.NOTB) {
+            var load = this.buildJasminLoadElementInstruction(unaryOp.getOperand(), varTable, reports);
+            this.changeCurrentMethodStackSizeLimit(-1);
+            return '\t' + load + "\n\tifeq " + instruction.getLabel();
+        }
+
         var inst = switch (cond.getInstType()) {
             case UNARYOPER ->
                     this.buildJasminUnaryOperatorInstruction((UnaryOpInstruction) cond, varTable, reports) + " "; // negated boolean
@@ -594,6 +778,43 @@ public class Backend implements JasminBackend {
         return sb.toString();
     }
 
+    private boolean isIntegerComparison(BinaryOpInstruction instruction) {
+        return switch (instruction.getOperation().getOpType()) {
+            case LTH, GTH, EQ, NEQ, LTE, GTE -> Arrays.stream(new Element[]{instruction.getLeftOperand(), instruction.getRightOperand()})
+                    .allMatch(elem -> elem.getType().getTypeOfElement() == ElementType.INT32 || elem.getType().getTypeOfElement() == ElementType.BOOLEAN);
+            default -> false;
+        };
+    }
+
+    private String buildJasminComparisonBranch(BinaryOpInstruction instruction, String label, HashMap<String, Descriptor> varTable, List<Report> reports) {
+
+        // branch on the comparison itself instead of materializing a boolean and testing it with ifne
+        var sb = new StringBuilder();
+
+        var right = instruction.getRightOperand();
+        var compareWithZero = right instanceof LiteralElement literal && Integer.parseInt(literal.getLiteral()) == 0;
+
+        sb.append('\t').append(this.buildJasminLoadElementInstruction(instruction.getLeftOperand(), varTable, reports)).append('\n');
+
+        if (!compareWithZero)
+            sb.append('\t').append(this.buildJasminLoadElementInstruction(right, varTable, reports)).append('\n');
+
+        sb.append('\t').append(compareWithZero ? "if" : "if_icmp");
+        switch (instruction.getOperation().getOpType()) {
+            case LTH -> sb.append("lt");
+            case GTH -> sb.append("gt");
+            case EQ -> sb.append("eq");
+            case NEQ -> sb.append("ne");
+            case LTE -> sb.append("le");
+            case GTE -> sb.append("ge");
+        }
+        sb.append(' ').append(label);
+
+        this.changeCurrentMethodStackSizeLimit(compareWithZero ? -1 : -2);
+
+        return sb.toString();
+    }
+
     private String buildJasminReturnInstruction(ReturnInstruction instruction, HashMap<String, Descriptor> varTable, List<Report> reports) {
 
         var sb = new StringBuilder();
@@ -0,0 +1,291 @@
+package pt.up.fe.comp2023.backend;
+
+import org.specs.comp.ollir.CondBranchInstruction;
+import org.specs.comp.ollir.GotoInstruction;
+import org.specs.comp.ollir.InstructionType;
+import org.specs.comp.ollir.Method;
+import pt.up.fe.comp2023.optimization.Profile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Orders the basic blocks of a method so that the likely successor of each block comes right after it, where it is
+ * reached without a jump.
+ * <p>
+ * The likely successor is the hotter one when there is a profile. Otherwise loop back edges are likely, successors that
+ * leave a loop are not, and the original order breaks ties, so code without loop exits keeps its layout. Blocks that
+ * end up away from the block that fell into them get a jump, and a label if they had none. Jumps to a block that only
+ * jumps again go straight to the final block, and blocks that cannot be reached, like the jumps left after a return,
+ * are dropped, so jumps must go to the label of their target block rather than the one in their instruction.
+ */
+class BlockLayout {
+    static final class Block {
+        final int index;
+        final int start;
+        final int end;
+        Block target;
+        Block fallThrough;
+        // The first label of the block, or one made up for it if it needs one and had none
+        String label;
+        boolean newLabel;
+
+        private Block(int index, int start, int end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final Method method;
+    private final Profile profile;
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<Block> order = new ArrayList<>();
+    private final long[] counts;
+    // The innermost loop of each block, as the index of its header and of the block with the back edge
+    private final int[] loopStart;
+    private final int[] loopEnd;
+
+    // Profiled code counts every block, so jumps are only threaded through blocks when it is not profiled
+    BlockLayout(Method method, Profile profile, boolean threadJumps) {
+        this.method = method;
+        this.profile = profile;
+
+        split();
+
+        if (threadJumps)
+            threadJumps();
+
+        this.counts = new long[blocks.size()];
+        this.loopStart = new int[blocks.size()];
+        this.loopEnd = new int[blocks.size()];
+
+        findCounts();
+        findLoops();
+        arrange();
+        nameDisplacedBlocks();
+    }
+
+    /**
+     * The blocks in the order they should be emitted in, always starting with the entry block.
+     */
+    List<Block> getBlocks() {
+        return order;
+    }
+
+    private void split() {
+        var instructions = method.getInstructions();
+        var blockNames = Profile.getBlockNames(method);
+        var labels = new HashMap<String, Block>();
+        int start = 0;
+
+        for (int i = 1; i <= instructions.size(); i++) {
+            if (i < instructions.size() && blockNames[i] == null)
+                continue;
+
+            var block = new Block(blocks.size(), start, i);
+            blocks.add(block);
+
+            for (var label : method.getLabels(instructions.get(start)))
+                labels.put(label, block);
+
+            start = i;
+        }
+
+        for (var block : blocks) {
+            var last = instructions.get(block.end - 1);
+            var next = block.index + 1 < blocks.size() ? blocks.get(block.index + 1) : null;
+            var labelList = method.getLabels(instructions.get(block.start));
+
+            block.label = labelList.isEmpty() ? null : labelList.get(0);
+
+            switch (last.getInstType()) {
+                case GOTO -> block.target = labels.get(((GotoInstruction) last).getLabel());
+                case BRANCH -> {
+                    block.target = labels.get(((CondBranchInstruction) last).getLabel());
+                    block.fallThrough = next;
+                }
+                case RETURN -> {
+                }
+                default -> block.fallThrough = next;
+            }
+        }
+    }
+
+    private void threadJumps() {
+        for (var block : blocks) {
+            block.target = skipJumps(block.target);
+            block.fallThrough = skipJumps(block.fallThrough);
+        }
+    }
+
+    private Block skipJumps(Block block) {
+        // Bounded, an empty infinite loop jumps to itself
+        for (int i = 0; i < blocks.size() && block != null && isJump(block); i++)
+            block = block.target;
+
+        return block;
+    }
+
+    private boolean isJump(Block block) {
+        return block.end - block.start == 1 && method.getInstructions().get(block.start).getInstType() == InstructionType.GOTO;
+    }
+
+    private void findCounts() {
+        var blockNames = Profile.getBlockNames(method);
+        var counted = profile != null && profile.matches(method);
+
+        for (var block : blocks)
+            counts[block.index] = counted ? profile.getCount(Profile.getMethodName(method), blockNames[block.start]) : -1;
+    }
+
+    // The code comes from structured statements, so the blocks of a loop are the ones between its header and its back edge
+    private void findLoops() {
+        for (var block : blocks) {
+            loopStart[block.index] = -1;
+            loopEnd[block.index] = -1;
+        }
+
+        for (var block : blocks) {
+            if (block.target == null || block.target.index > block.index)
+                continue;
+
+            // Back edges are found from the innermost loops out, so inner loops are never overwritten
+            for (int i = block.target.index; i <= block.index; i++) {
+                if (loopStart[i] < 0) {
+                    loopStart[i] = block.target.index;
+                    loopEnd[i] = block.index;
+                }
+            }
+        }
+    }
+
+    private void arrange() {
+        if (blocks.isEmpty())
+            return;
+
+        var placed = unreachable();
+        var last = blocks.get(blocks.size() - 1);
+        // A method that does not end in a return falls off its last block, so it stays last
+        var pinned = !placed[last.index] && last.fallThrough == null && last.target == null && !endsInReturn(last) ? last : null;
+
+        for (var block : blocks) {
+            if (block == pinned)
+                continue;
+
+            // Each chain follows the likely successors until they are all placed
+            for (var current = block; current != null && !placed[current.index]; current = likelySuccessor(current, placed, pinned)) {
+                placed[current.index] = true;
+                order.add(current);
+            }
+        }
+
+        if (pinned != null)
+            order.add(pinned);
+    }
+
+    // Unreachable blocks start out as placed, so they are never laid out
+    private boolean[] unreachable() {
+        var unreachable = new boolean[blocks.size()];
+        Arrays.fill(unreachable, true);
+
+        var stack = new ArrayDeque<Block>();
+        stack.push(blocks.get(0));
+
+        while (!stack.isEmpty()) {
+            var block = stack.pop();
+
+            if (!unreachable[block.index])
+                continue;
+
+            unreachable[block.index] = false;
+
+            if (block.target != null)
+                stack.push(block.target);
+            if (block.fallThrough != null)
+                stack.push(block.fallThrough);
+        }
+
+        return unreachable;
+    }
+
+    private Block likelySuccessor(Block block, boolean[] placed, Block pinned) {
+        var candidates = new ArrayList<Block>();
+
+        if (block.fallThrough != null && block.target != null) {
+            // Ties keep the original order, which threaded jumps may have swapped
+            candidates.add(block.target);
+            candidates.add(block.fallThrough);
+            candidates.sort(Comparator.comparingLong((Block successor) -> -score(block, successor)).thenComparingInt(successor -> successor.index));
+        } else if (block.fallThrough != null) {
+            candidates.add(block.fallThrough);
+        } else if (block.target != null && profile != null) {
+            // Following a jump moves it to the block that came next, which only pays off if that block is colder
+            var next = block.index + 1 < blocks.size() ? blocks.get(block.index + 1) : null;
+
+            if (next == null || placed[next.index] || counts[block.target.index] > counts[next.index])
+                candidates.add(block.target);
+        }
+
+        for (var candidate : candidates)
+            if (candidate != pinned && !placed[candidate.index])
+                return candidate;
+
+        return null;
+    }
+
+    // Compares the successors of a branch, profile counts first and loop structure second
+    private long score(Block block, Block successor) {
+        if (counts[block.target.index] >= 0 && counts[block.fallThrough.index] >= 0
+                && counts[block.target.index] != counts[block.fallThrough.index])
+            return counts[successor.index];
+
+        if (successor.index <= block.index)
+            return 2;
+
+        return leavesLoop(block, successor) ? 0 : 1;
+    }
+
+    // A successor leaves the loop of the branch if it is outside it, or if it returns or jumps out of it straight away
+    private boolean leavesLoop(Block block, Block successor) {
+        var start = loopStart[block.index];
+        var end = loopEnd[block.index];
+
+        if (start < 0)
+            return false;
+
+        if (successor.index < start || successor.index > end || endsInReturn(successor))
+            return true;
+
+        return successor.fallThrough == null && successor.target != null
+                && (successor.target.index < start || successor.target.index > end);
+    }
+
+    private boolean endsInReturn(Block block) {
+        return method.getInstructions().get(block.end - 1).getInstType() == InstructionType.RETURN;
+    }
+
+    // Blocks that are no longer right after the block that falls into them are jumped to, so they need a label
+    private void nameDisplacedBlocks() {
+        for (int i = 0; i < order.size(); i++) {
+            var block = order.get(i);
+            var next = i + 1 < order.size() ? order.get(i + 1) : null;
+
+            if (block.target != null)
+                name(block.target);
+            if (block.fallThrough != null && block.fallThrough != next)
+                name(block.fallThrough);
+        }
+    }
+
+    private void name(Block block) {
+        if (block.label == null) {
+            block.label = "__block__" + block.index;
+            block.newLabel = true;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package pt.up.fe.comp2023.backend;
+
+import org.specs.comp.ollir.ClassUnit;
+import org.specs.comp.ollir.Instruction;
+import org.specs.comp.ollir.Method;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp2023.optimization.JmmOllirResult;
+import pt.up.fe.comp2023.optimization.Profile;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers the execution counters of a class compiled with profiling: one for each method entry and one for each basic
+ * block.
+ * <p>
+ * The counters are a static long[] of the compiled class, created by the {@code JmmProfiler} runtime class from a
+ * description of every counter. The runtime prints the hottest blocks and their source lines when the program exits,
+ * and writes every count to the profile file, if there is one, for {@link Profile} to read.
+ */
+class BlockProfiler {
+    static final String RUNTIME_CLASS = "JmmProfiler";
+    static final String COUNTERS_FIELD = "__profile";
+    // The array, the index and the two slots of the long that is incremented
+    static final int STACK_SIZE = 6;
+
+    private final String className;
+    private final String sourceName;
+    private final String profileFile;
+    private final Map<Method, Integer> entryCounters = new IdentityHashMap<>();
+    private final Map<Instruction, Integer> blockCounters = new IdentityHashMap<>();
+    private final List<String> descriptions = new ArrayList<>();
+
+    BlockProfiler(ClassUnit ollirClass, OllirResult ollirResult, String sourceName, String profileFile) {
+        this.className = ollirClass.getClassName();
+        this.sourceName = sourceName;
+        this.profileFile = profileFile;
+
+        var sourceLines = ollirResult instanceof JmmOllirResult jmmResult ? jmmResult : null;
+        int counter = 0;
+
+        for (var method : ollirClass.getMethods()) {
+            var name = Profile.getMethodName(method);
+
+            // Each method is described by its name and fingerprint, then a "line block" pair per counter
+            var line = sourceLines == null ? -1 : sourceLines.getSourceLine(name, Profile.ENTRY);
+            var description = new StringBuilder(name).append(' ').append(Profile.fingerprint(method)).append('\n').append(line).append(' ').append(Profile.ENTRY);
+            entryCounters.put(method, counter++);
+
+            var instructions = method.getInstructions();
+            var blockNames = Profile.getBlockNames(method);
+
+            for (int i = 0; i < instructions.size(); i++) {
+                var instruction = instructions.get(i);
+                var labels = method.getLabels(instruction);
+
+                if (blockNames[i] == null)
+                    continue;
+
+                // Blocks without a label continue the statement of the block before them
+                for (var label : labels) {
+                    var labelLine = sourceLines == null ? -1 : sourceLines.getSourceLine(name, label);
+
+                    if (labelLine >= 0) {
+                        line = labelLine;
+                        break;
+                    }
+                }
+
+                description.append('\n').append(line).append(' ').append(blockNames[i]);
+                blockCounters.put(instruction, counter++);
+            }
+
+            descriptions.add(description.toString());
+        }
+    }
+
+    int getEntryCounter(Method method) {
+        return entryCounters.get(method);
+    }
+
+    /**
+     * The counter of the block the instruction starts, or null if it does not start one.
+     */
+    Integer getBlockCounter(Instruction instruction) {
+        return blockCounters.get(instruction);
+    }
+
+    String buildField() {
+        return ".field static " + COUNTERS_FIELD + " [J\n";
+    }
+
+    String buildCountersLoad() {
+        return "\tgetstatic " + className + "/" + COUNTERS_FIELD + " [J\n";
+    }
+
+    // The static initializer registers the counters with the runtime, which reports them at exit
+    String buildInitializer() {
+        var sb = new StringBuilder();
+
+        sb.append(".method static <clinit>()V\n");
+        sb.append("\t.limit stack 5\n");
+        sb.append("\t.limit locals 0\n");
+        sb.append("\tldc ").append(quote(sourceName)).append('\n');
+        sb.append("\tldc ").append(descriptions.size()).append('\n');
+        sb.append("\tanewarray java/lang/String\n");
+
+        for (int i = 0; i < descriptions.size(); i++) {
+            sb.append("\tdup\n");
+            sb.append("\tldc ").append(i).append('\n');
+            sb.append("\tldc ").append(quote(descriptions.get(i))).append('\n');
+            sb.append("\taastore\n");
+        }
+
+        sb.append('\t').append(profileFile == null ? "aconst_null" : "ldc " + quote(profileFile)).append('\n');
+
+        sb.append("\tinvokestatic ").append(RUNTIME_CLASS).append("/register(Ljava/lang/String;[Ljava/lang/String;Ljava/lang/String;)[J\n");
+        sb.append("\tputstatic ").append(className).append('/').append(COUNTERS_FIELD).append(" [J\n");
+        sb.append("\treturn\n");
+        sb.append(".end method\n");
+
+        return sb.toString();
+    }
+
+    private static String quote(String text) {
+        return '"' + text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+}
@@ -20,7 +20,9 @@ public class JasminOptimizer {
         jasminCode = this.performOptimization(jasminCode);
 
         var reports = new ArrayList<Report>();
-        reports.add(new Report(ReportType.DEBUG, Stage.GENERATION, -1, -1, "Optimized Jasmin:\n" + jasminCode));
+
+        if (Boolean.parseBoolean(jasminResult.getConfig().get("debug")))
+            reports.add(new Report(ReportType.DEBUG, Stage.GENERATION, -1, -1, "Optimized Jasmin:\n" + jasminCode));
 
         return new JasminResult(jasminResult.getClassName(), jasminCode, reports, jasminResult.getConfig());
     }
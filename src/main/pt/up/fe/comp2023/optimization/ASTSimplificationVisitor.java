@@ -2,6 +2,7 @@ package pt.up.fe.comp2023.optimization;
 
 import pt.up.fe.comp.jmm.ast.JmmNode;
 import pt.up.fe.comp.jmm.ast.PostorderJmmVisitor;
+import pt.up.fe.comp2023.Utils;
 
 public class ASTSimplificationVisitor extends PostorderJmmVisitor<Void, Boolean> {
     public ASTSimplificationVisitor() {
@@ -36,9 +37,7 @@ public class ASTSimplificationVisitor extends PostorderJmmVisitor<Void, Boolean>
         var otherwise = node.getJmmChild(2);
 
         if (condition.getKind().equals("LiteralExpression")) {
-            var value = condition.get("value");
-
-            if (value.equals("true"))
+            if (Utils.literalValue(condition) != 0)
                 node.replace(then);
             else
                 node.replace(otherwise);
@@ -53,6 +52,10 @@ public class ASTSimplificationVisitor extends PostorderJmmVisitor<Void, Boolean>
         var parent = node.getJmmParent();
         var nodeIndex = node.getIndexOfSelf();
 
+        // Only statement lists have dead code after a jump, other parents hold it as a branch or body
+        if (Utils.in(new String[]{"IfStatement", "WhileStatement", "DoStatement", "ForStatement", "ForEachStatement"}, parent.getKind()))
+            return false;
+
         if (parent.getNumChildren() == nodeIndex + 1)
             return false;
 
@@ -2,6 +2,7 @@ package pt.up.fe.comp2023.optimization;
 
 import pt.up.fe.comp.jmm.ast.JmmNode;
 import pt.up.fe.comp.jmm.ast.PostorderJmmVisitor;
+import pt.up.fe.comp2023.Utils;
 
 public class ConstantFoldingVisitor extends PostorderJmmVisitor<Void, Boolean> {
     public ConstantFoldingVisitor() {
@@ -36,6 +37,7 @@ public class ConstantFoldingVisitor extends PostorderJmmVisitor<Void, Boolean> {
         var op = node.get("op");
 
         left.put("value", ConstantUtils.calculate(leftValue, rightValue, op, leftType));
+        left.put("type", node.get("type"));
         node.replace(left);
 
         return true;
@@ -65,8 +67,7 @@ public class ConstantFoldingVisitor extends PostorderJmmVisitor<Void, Boolean> {
         if (!first.getKind().equals("LiteralExpression"))
             return false;
 
-        var firstValue = Boolean.parseBoolean(first.get("value"));
-        node.replace(firstValue ? second : third);
+        node.replace(Utils.literalValue(first) != 0 ? second : third);
 
         return true;
     }
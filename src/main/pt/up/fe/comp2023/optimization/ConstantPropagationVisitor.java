@@ -2,6 +2,7 @@ package pt.up.fe.comp2023.optimization;
 
 import pt.up.fe.comp.jmm.ast.AJmmVisitor;
 import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp2023.Utils;
 
 import java.util.*;
 
@@ -92,10 +93,13 @@ public class ConstantPropagationVisitor extends AJmmVisitor<Void, Boolean> {
         var value = right.get("value");
 
         if (!op.equals("=")) {
+            // The previous value is unknown, so the compound assignment cannot be folded
+            if (var == null)
+                return r;
+
             var type = right.get("type");
-            var leftValue = var == null ? ConstantUtils.defaultValue(type) : var.value;
 
-            value = ConstantUtils.calculate(leftValue, value, op.replace("=", ""), type);
+            value = ConstantUtils.calculate(var.value, value, op.replace("=", ""), type);
             node.put("op", "=");
             right.replace(ConstantUtils.literal(value, type));
         }
@@ -211,44 +215,12 @@ public class ConstantPropagationVisitor extends AJmmVisitor<Void, Boolean> {
     }
 
     protected Boolean visitLoop(JmmNode node, Void context) {
-        var modifiedVariables = modifiedVariables(node);
+        var modifiedVariables = Utils.modifiedVariables(node);
         modifiedVariables.forEach(variables::remove);
 
         return visitChildren(node, context);
     }
 
-    private Set<String> modifiedVariables(JmmNode node) {
-        var r = new HashSet<String>();
-        Stack<JmmNode> stack = new Stack<>();
-        stack.push(node);
-
-        while (!stack.isEmpty()) {
-            var n = stack.pop();
-
-            switch (n.getKind()) {
-                case "VariableDeclaration" -> r.add(n.get("id"));
-                case "AssignmentExpression" -> {
-                    var left = n.getJmmChild(0);
-
-                    if (left.getKind().equals("IdentifierExpression"))
-                        r.add(left.get("id"));
-                }
-                case "UnaryPreOp", "UnaryPostOp" -> {
-                    var child = n.getJmmChild(0);
-
-                    if (child.getKind().equals("IdentifierExpression")
-                        && (n.get("op").equals("++") || n.get("op").equals("--")))
-                        r.add(child.get("id"));
-                }
-            }
-
-            for (var child : n.getChildren())
-                stack.push(child);
-        }
-
-        return r;
-    }
-
     private static class Variable {
         public final JmmNode node;
         public final String value;
@@ -0,0 +1,17 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.Method;
+
+public class ControlFlowPass implements OllirPass {
+    public static final String NAME = "controlFlow";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void run(Method method) {
+        method.buildCFG();
+    }
+}
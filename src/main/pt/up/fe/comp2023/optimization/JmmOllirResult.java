@@ -0,0 +1,29 @@
+package pt.up.fe.comp2023.optimization;
+
+import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp.jmm.report.Report;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An OLLIR result that also knows which source lines the generated code came from.
+ */
+public class JmmOllirResult extends OllirResult {
+    // Source lines of each method by label, with the line of the declaration under Profile.ENTRY
+    private final Map<String, Map<String, Integer>> sourceLines;
+
+    public JmmOllirResult(JmmSemanticsResult semanticsResult, String ollirCode, List<Report> reports, Map<String, Map<String, Integer>> sourceLines) {
+        super(semanticsResult, ollirCode, reports);
+        this.sourceLines = sourceLines;
+    }
+
+    /**
+     * The source line of the statement a label of the method was generated for, or of the method itself for
+     * {@link Profile#ENTRY}, or -1 if it is unknown.
+     */
+    public int getSourceLine(String method, String label) {
+        return sourceLines.getOrDefault(method, Map.of()).getOrDefault(label, -1);
+    }
+}
@@ -0,0 +1,367 @@
+package pt.up.fe.comp2023.optimization;
+
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ast.JmmNodeImpl;
+import pt.up.fe.comp.jmm.ast.PostorderJmmVisitor;
+import pt.up.fe.comp2023.Constants;
+import pt.up.fe.comp2023.Utils;
+
+import java.util.Stack;
+
+public class LoopUnrollingVisitor extends PostorderJmmVisitor<Void, Boolean> {
+    public static final int DEFAULT_FACTOR = 4;
+
+    private static final int MAX_TRIP_COUNT = 1 << 16;
+    private static final int MAX_FULL_UNROLL_TRIP_COUNT = 16;
+    private static final int MAX_UNROLLED_SIZE = 256;
+    // Loops that a profile shows to be hot may grow this many times larger
+    private static final int HOT_SIZE_FACTOR = 4;
+
+    private final int factor;
+    private final Profile profile;
+
+    public LoopUnrollingVisitor(int factor) {
+        this(factor, null);
+    }
+
+    public LoopUnrollingVisitor(int factor, Profile profile) {
+        super();
+        this.factor = factor;
+        this.profile = profile;
+        buildVisitor();
+    }
+
+    @Override
+    protected void buildVisitor() {
+        addVisit("ForStatement", this::visitForStatement);
+
+        setDefaultVisit(this::visitOther);
+        setReduceSimple(Boolean::logicalOr);
+    }
+
+    private Boolean visitOther(JmmNode node, Void context) {
+        return false;
+    }
+
+    protected Boolean visitForStatement(JmmNode node, Void context) {
+        if (factor < 2 || node.getOptional("unrolled").isPresent())
+            return false;
+
+        var loop = matchCountedLoop(node);
+        var maxSize = maxUnrolledSize(node);
+
+        if (loop == null || maxSize == 0)
+            return false;
+
+        var body = node.getJmmChild(3);
+        var bodySize = size(body);
+
+        if (loop.tripCount <= MAX_FULL_UNROLL_TRIP_COUNT && loop.tripCount * bodySize <= maxSize) {
+            fullyUnroll(node, loop, body);
+            return true;
+        }
+
+        if (loop.tripCount >= 2 * factor && factor * bodySize <= maxSize) {
+            partiallyUnroll(node, loop, body);
+            return true;
+        }
+
+        return false;
+    }
+
+    // Without a profile, or for loops it has no counts for, every loop gets the same budget
+    private int maxUnrolledSize(JmmNode node) {
+        var line = node.getOptional("lineStart").map(Integer::parseInt).orElse(-1);
+        var count = profile == null || line < 0 ? -1 : profile.getLineCount(line);
+
+        if (count == 0)
+            return 0;
+
+        return profile != null && profile.isHot(count) ? HOT_SIZE_FACTOR * MAX_UNROLLED_SIZE : MAX_UNROLLED_SIZE;
+    }
+
+    private void fullyUnroll(JmmNode node, CountedLoop loop, JmmNode body) {
+        var block = new JmmNodeImpl("StatementBlock");
+
+        for (int i = 0; i < loop.tripCount; i++) {
+            block.add(assignment(loop, ConstantUtils.literal(String.valueOf(loop.start + i * loop.step), loop.type)));
+            block.add(Utils.copy(body));
+        }
+
+        block.add(assignment(loop, ConstantUtils.literal(String.valueOf(loop.start + loop.tripCount * loop.step), loop.type)));
+
+        node.replace(block);
+    }
+
+    private void partiallyUnroll(JmmNode node, CountedLoop loop, JmmNode body) {
+        var groups = loop.tripCount / factor;
+        var remainder = loop.tripCount % factor;
+        var bound = loop.start + groups * factor * loop.step;
+
+        // The main loop runs `factor` iterations at a time, stopping right before the remainder
+        var condition = new JmmNodeImpl("BinaryOp");
+        condition.put("op", loop.step > 0 ? "<" : ">");
+        condition.put("type", "boolean");
+        condition.add(identifier(loop));
+        condition.add(ConstantUtils.literal(String.valueOf(bound), loop.type));
+        node.getJmmChild(1).getJmmChild(0).replace(condition);
+
+        var unrolledBody = new JmmNodeImpl("StatementBlock");
+
+        for (int i = 0; i < factor; i++) {
+            if (i > 0)
+                unrolledBody.add(increment(loop));
+            unrolledBody.add(Utils.copy(body));
+        }
+
+        body.replace(unrolledBody);
+        node.put("unrolled", "true");
+
+        if (remainder == 0)
+            return;
+
+        // The remaining iterations are peeled after the loop
+        var block = new JmmNodeImpl("StatementBlock");
+        node.replace(block);
+        block.add(node);
+
+        for (int i = 0; i < remainder; i++) {
+            block.add(Utils.copy(body));
+            block.add(increment(loop));
+        }
+    }
+
+    private CountedLoop matchCountedLoop(JmmNode node) {
+        var init = node.getJmmChild(0);
+        var term = node.getJmmChild(1);
+        var inc = node.getJmmChild(2);
+
+        if (init.getNumChildren() != 1 || term.getNumChildren() != 1 || inc.getNumChildren() != 1)
+            return null;
+
+        // for (int i = c0; ...) or for (i = c0; ...)
+        var initNode = init.getJmmChild(0);
+        JmmNode variable;
+        JmmNode start;
+
+        if (initNode.getKind().equals("VariableDeclaration") && initNode.getNumChildren() == 2) {
+            variable = initNode;
+            start = initNode.getJmmChild(1);
+        } else if (initNode.getKind().equals("AssignmentExpression") && initNode.get("op").equals("=")
+                && initNode.getJmmChild(0).getKind().equals("IdentifierExpression")) {
+            variable = initNode.getJmmChild(0);
+            start = initNode.getJmmChild(1);
+        } else {
+            return null;
+        }
+
+        var id = variable.get("id");
+        var type = variable.get("type");
+
+        if (!variable.get("origin").equals("local") || !Utils.in(Constants.INTEGER_TYPES, type) || !isIntegerLiteral(start))
+            return null;
+
+        // ...; i < c1; ...
+        var condition = term.getJmmChild(0);
+
+        if (!condition.getKind().equals("BinaryOp"))
+            return null;
+
+        var op = condition.get("op");
+        JmmNode bound;
+
+        if (isVariable(condition.getJmmChild(0), id)) {
+            bound = condition.getJmmChild(1);
+        } else if (isVariable(condition.getJmmChild(1), id)) {
+            bound = condition.getJmmChild(0);
+            op = switch (op) {
+                case "<" -> ">";
+                case ">" -> "<";
+                case "<=" -> ">=";
+                case ">=" -> "<=";
+                default -> op;
+            };
+        } else {
+            return null;
+        }
+
+        if (!Utils.in(new String[]{"<", ">", "<=", ">=", "!="}, op) || !isIntegerLiteral(bound))
+            return null;
+
+        // ...; ...; i++)
+        var step = step(inc.getJmmChild(0), id);
+
+        if (step == 0 || !isUnrollable(node.getJmmChild(3), id))
+            return null;
+
+        var startValue = Utils.literalValue(start);
+        var tripCount = tripCount(startValue, op, Utils.literalValue(bound), step);
+
+        if (tripCount < 0)
+            return null;
+
+        return new CountedLoop(id, type, startValue, step, tripCount);
+    }
+
+    private int step(JmmNode node, String id) {
+        var kind = node.getKind();
+
+        if ((kind.equals("UnaryPostOp") || kind.equals("UnaryPreOp")) && isVariable(node.getJmmChild(0), id))
+            return switch (node.get("op")) {
+                case "++" -> 1;
+                case "--" -> -1;
+                default -> 0;
+            };
+
+        if (!kind.equals("AssignmentExpression") || !isVariable(node.getJmmChild(0), id))
+            return 0;
+
+        var op = node.get("op");
+        var right = node.getJmmChild(1);
+
+        // i = i + c, i = c + i and i = i - c are the same as the compound assignments
+        if (op.equals("=") && right.getKind().equals("BinaryOp")) {
+            var first = right.getJmmChild(0);
+            var second = right.getJmmChild(1);
+
+            if (isVariable(first, id)) {
+                op = right.get("op") + "=";
+                right = second;
+            } else if (isVariable(second, id) && right.get("op").equals("+")) {
+                op = "+=";
+                right = first;
+            }
+        }
+
+        if (!isIntegerLiteral(right))
+            return 0;
+
+        var value = Utils.literalValue(right);
+
+        return switch (op) {
+            case "+=" -> value;
+            case "-=" -> -value;
+            default -> 0;
+        };
+    }
+
+    private int tripCount(int start, String op, int bound, int step) {
+        long i = start;
+        int count = 0;
+
+        while (switch (op) {
+            case "<" -> i < bound;
+            case ">" -> i > bound;
+            case "<=" -> i <= bound;
+            case ">=" -> i >= bound;
+            default -> i != bound;
+        }) {
+            if (++count > MAX_TRIP_COUNT)
+                return -1;
+
+            i += step;
+
+            // Bail out instead of reproducing integer overflow
+            if (i < Integer.MIN_VALUE || i > Integer.MAX_VALUE)
+                return -1;
+        }
+
+        return count;
+    }
+
+    private boolean isUnrollable(JmmNode body, String id) {
+        Stack<JmmNode> stack = new Stack<>();
+        stack.push(body);
+
+        while (!stack.isEmpty()) {
+            var n = stack.pop();
+
+            switch (n.getKind()) {
+                case "BreakStatement", "ContinueStatement" -> {
+                    return false;
+                }
+                case "VariableDeclaration" -> {
+                    if (n.get("id").equals(id))
+                        return false;
+                }
+                case "AssignmentExpression" -> {
+                    if (isVariable(n.getJmmChild(0), id))
+                        return false;
+                }
+                case "UnaryPreOp", "UnaryPostOp" -> {
+                    if (isVariable(n.getJmmChild(0), id) && (n.get("op").equals("++") || n.get("op").equals("--")))
+                        return false;
+                }
+            }
+
+            for (var child : n.getChildren())
+                stack.push(child);
+        }
+
+        return true;
+    }
+
+    private int size(JmmNode node) {
+        int size = 1;
+
+        for (var child : node.getChildren())
+            size += size(child);
+
+        return size;
+    }
+
+    private boolean isVariable(JmmNode node, String id) {
+        return node.getKind().equals("IdentifierExpression") && node.get("id").equals(id);
+    }
+
+    private boolean isIntegerLiteral(JmmNode node) {
+        return node.getKind().equals("LiteralExpression") && node.get("type").equals("int");
+    }
+
+    private JmmNode identifier(CountedLoop loop) {
+        var node = new JmmNodeImpl("IdentifierExpression");
+        node.put("id", loop.id);
+        node.put("type", loop.type);
+        node.put("origin", "local");
+        node.put("canAssign", "true");
+        return node;
+    }
+
+    private JmmNode assignment(CountedLoop loop, JmmNode value) {
+        var assignment = new JmmNodeImpl("AssignmentExpression");
+        assignment.put("op", "=");
+        assignment.put("type", loop.type);
+        assignment.add(identifier(loop));
+        assignment.add(value);
+
+        var statement = new JmmNodeImpl("ExpressionStatement");
+        statement.add(assignment);
+        return statement;
+    }
+
+    private JmmNode increment(CountedLoop loop) {
+        var value = new JmmNodeImpl("BinaryOp");
+        value.put("op", loop.step > 0 ? "+" : "-");
+        value.put("type", loop.type);
+        value.add(identifier(loop));
+        value.add(ConstantUtils.literal(String.valueOf(Math.abs(loop.step)), loop.type));
+
+        return assignment(loop, value);
+    }
+
+    private static class CountedLoop {
+        public final String id;
+        public final String type;
+        public final int start;
+        public final int step;
+        public final int tripCount;
+
+        public CountedLoop(String id, String type, int start, int step, int tripCount) {
+            this.id = id;
+            this.type = type;
+            this.start = start;
+            this.step = step;
+            this.tripCount = tripCount;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.Method;
+
+import java.util.Collections;
+import java.util.List;
+
+public interface OllirPass {
+    String getName();
+
+    default List<String> getDependencies() {
+        return Collections.emptyList();
+    }
+
+    // Passes only touch the method they are given, so methods can be processed concurrently
+    void run(Method method);
+
+    // Short summary of what the pass did to a method, for the debug report
+    default String describe(Method method) {
+        return null;
+    }
+}
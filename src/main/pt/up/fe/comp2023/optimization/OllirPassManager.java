@@ -0,0 +1,139 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.Method;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.ReportType;
+import pt.up.fe.comp.jmm.report.Stage;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+public class OllirPassManager {
+    private final Map<String, OllirPass> passes = new LinkedHashMap<>();
+    private final int parallelism;
+    private final boolean debug;
+
+    // A parallelism of 1 runs every method on the calling thread
+    public OllirPassManager(int parallelism, boolean debug) {
+        this.parallelism = parallelism;
+        this.debug = debug;
+    }
+
+    public OllirPassManager register(OllirPass pass) {
+        if (passes.putIfAbsent(pass.getName(), pass) != null)
+            throw new IllegalArgumentException("Pass '" + pass.getName() + "' is already registered");
+
+        return this;
+    }
+
+    public void run(OllirResult ollirResult) {
+        var schedule = schedule();
+        var methods = ollirResult.getOllirClass().getMethods();
+        var timings = new long[methods.size()][schedule.size()];
+        var errors = new String[methods.size()];
+
+        IntConsumer runMethod = i -> errors[i] = runPasses(methods.get(i), schedule, timings[i]);
+
+        if (parallelism > 1 && methods.size() > 1) {
+            // A parallel stream started inside a pool runs on that pool, which bounds the threads used
+            var pool = new ForkJoinPool(Math.min(parallelism, methods.size()));
+
+            try {
+                pool.submit(() -> IntStream.range(0, methods.size()).parallel().forEach(runMethod)).join();
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            IntStream.range(0, methods.size()).forEach(runMethod);
+        }
+
+        for (var error : errors)
+            if (error != null)
+                ollirResult.getReports().add(new Report(ReportType.ERROR, Stage.OPTIMIZATION, -1, -1, error));
+
+        if (debug)
+            ollirResult.getReports().add(new Report(ReportType.DEBUG, Stage.OPTIMIZATION, -1, -1, timingReport(schedule, methods, timings)));
+    }
+
+    private String runPasses(Method method, List<OllirPass> schedule, long[] timings) {
+        for (int i = 0; i < schedule.size(); i++) {
+            var pass = schedule.get(i);
+            var start = System.nanoTime();
+
+            try {
+                pass.run(method);
+            } catch (RuntimeException e) {
+                // Later passes may depend on this one, so the method is left as is
+                return pass.getName() + " failed on method " + method.getMethodName() + ": " + e.getMessage();
+            } finally {
+                timings[i] = System.nanoTime() - start;
+            }
+        }
+
+        return null;
+    }
+
+    private List<OllirPass> schedule() {
+        var schedule = new ArrayList<OllirPass>();
+        var visiting = new HashSet<String>();
+        var scheduled = new HashSet<String>();
+
+        for (var name : passes.keySet())
+            schedule(name, schedule, visiting, scheduled);
+
+        return schedule;
+    }
+
+    private void schedule(String name, List<OllirPass> schedule, Set<String> visiting, Set<String> scheduled) {
+        if (scheduled.contains(name))
+            return;
+
+        if (!visiting.add(name))
+            throw new IllegalStateException("Cyclic dependency on pass '" + name + "'");
+
+        var pass = passes.get(name);
+
+        if (pass == null)
+            throw new IllegalStateException("Missing pass '" + name + "'");
+
+        for (var dependency : pass.getDependencies())
+            schedule(dependency, schedule, visiting, scheduled);
+
+        visiting.remove(name);
+        scheduled.add(name);
+        schedule.add(pass);
+    }
+
+    private String timingReport(List<OllirPass> schedule, List<Method> methods, long[][] timings) {
+        var sb = new StringBuilder("OLLIR pass timings:");
+
+        for (int i = 0; i < schedule.size(); i++) {
+            long total = 0;
+
+            for (var methodTimings : timings)
+                total += methodTimings[i];
+
+            sb.append(String.format("%n    %s: %.3f ms over %d methods", schedule.get(i).getName(), total / 1e6, methods.size()));
+        }
+
+        for (int m = 0; m < methods.size(); m++) {
+            var method = methods.get(m);
+            sb.append(String.format("%n    %s:", method.isConstructMethod() ? "<init>" : method.getMethodName()));
+
+            for (int i = 0; i < schedule.size(); i++) {
+                var pass = schedule.get(i);
+                var description = pass.describe(method);
+
+                sb.append(String.format(" %s %.3f ms", pass.getName(), timings[m][i] / 1e6));
+
+                if (description != null)
+                    sb.append(" (").append(description).append(")");
+            }
+        }
+
+        return sb.toString();
+    }
+}
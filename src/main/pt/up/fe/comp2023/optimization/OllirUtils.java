@@ -4,46 +4,23 @@ import pt.up.fe.comp.jmm.analysis.table.Symbol;
 import pt.up.fe.comp.jmm.analysis.table.Type;
 
 public class OllirUtils {
-    private static int temporaryVarCounter = 0;
-    private static int ifLabelCounter = 0;
-    private static int whileLabelCounter = 0;
-    private static int doWhileLabelCounter = 0;
-    private static int forLabelCounter = 0;
-    private static int forEachLabelCounter = 0;
-    private static int switchLabelCounter = 0;
-
-    public static String getNextTemp() {
-        return "__temp__" + temporaryVarCounter++;
-    }
-
-    public static String[] getNextIfLabels() {
-        return new String[] { "__else__" + ifLabelCounter, "__endif__" + ifLabelCounter++ };
-    }
-
-    public static String[] getNextWhileLabels() {
-        return new String[] { "__while__" + whileLabelCounter, "__endwhile__" + whileLabelCounter++ };
-    }
-
-    public static String[] getNextDoWhileLabels() {
-        return new String[] { "__dowhile__" + doWhileLabelCounter, "__enddowhile__" + doWhileLabelCounter++ };
-    }
-
-    public static String[] getNextForLabels() {
-        return new String[] { "__for__" + forLabelCounter, "__endfor__" + forLabelCounter++ };
-    }
-
-    public static String[] getNextForEachLabels() {
-        return new String[] {
-            "__foreach__" + forEachLabelCounter,
-            "__endforeach__" + forEachLabelCounter,
-            "__foreacharray__" + forEachLabelCounter,
-            "__foreachlength__" + forEachLabelCounter,
-            "__foreachindex__" + forEachLabelCounter++
+    public static boolean isRelationalOperator(String op) {
+        return switch (op) {
+            case "<", ">", "<=", ">=", "==", "!=" -> true;
+            default -> false;
         };
     }
 
-    public static String[] getNextSwitchLabels() {
-        return new String[] { "__switch__" + switchLabelCounter + "_", "__endswitch__" + switchLabelCounter++ };
+    public static String invertRelationalOperator(String op) {
+        return switch (op) {
+            case "<" -> ">=";
+            case ">" -> "<=";
+            case "<=" -> ">";
+            case ">=" -> "<";
+            case "==" -> "!=";
+            case "!=" -> "==";
+            default -> throw new IllegalArgumentException("Not a relational operator: " + op);
+        };
     }
 
     public static String toOllirType(Type type) {
@@ -8,8 +8,11 @@ import pt.up.fe.comp2023.analysis.JmmSymbolTable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class OllirVisitor extends AJmmVisitor<Integer, String> {
 
@@ -19,10 +22,70 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
 
     private final JmmSymbolTable table;
 
+    private final boolean parallel;
+
     private boolean visitedConstructor = false;
 
+    // Source lines of each method, by label, with the line of the declaration under Profile.ENTRY
+    private final Map<String, Map<String, Integer>> sourceLines = new HashMap<>();
+
+    // Temporaries and labels only need to be unique within a method, each method is emitted with its own counters
+    private int temporaryVarCounter = 0;
+    private final Map<String, Integer> labelLines = new HashMap<>();
+    private int ifLabelCounter = 0;
+    private int whileLabelCounter = 0;
+    private int doWhileLabelCounter = 0;
+    private int forLabelCounter = 0;
+    private int forEachLabelCounter = 0;
+    private int switchLabelCounter = 0;
+    private int conditionLabelCounter = 0;
+
     public OllirVisitor(JmmSymbolTable table) {
+        this(table, false);
+    }
+
+    public OllirVisitor(JmmSymbolTable table, boolean parallel) {
         this.table = table;
+        this.parallel = parallel;
+    }
+
+    private String getNextTemp() {
+        return "__temp__" + temporaryVarCounter++;
+    }
+
+    private String[] getNextIfLabels() {
+        return new String[] { "__else__" + ifLabelCounter, "__endif__" + ifLabelCounter++ };
+    }
+
+    private String[] getNextWhileLabels() {
+        return new String[] { "__while__" + whileLabelCounter, "__endwhile__" + whileLabelCounter, "__whilenext__" + whileLabelCounter++ };
+    }
+
+    private String[] getNextDoWhileLabels() {
+        return new String[] { "__dowhile__" + doWhileLabelCounter, "__enddowhile__" + doWhileLabelCounter, "__dowhilenext__" + doWhileLabelCounter++ };
+    }
+
+    private String[] getNextForLabels() {
+        return new String[] { "__for__" + forLabelCounter, "__endfor__" + forLabelCounter, "__fornext__" + forLabelCounter++ };
+    }
+
+    private String[] getNextForEachLabels() {
+        return new String[] {
+            "__foreach__" + forEachLabelCounter,
+            "__endforeach__" + forEachLabelCounter,
+            "__foreacharray__" + forEachLabelCounter,
+            "__foreachlength__" + forEachLabelCounter,
+            "__foreachindex__" + forEachLabelCounter,
+            "__foreachnext__" + forEachLabelCounter++
+        };
+    }
+
+    private String getNextConditionLabel() {
+        return "__condition__" + conditionLabelCounter++;
+    }
+
+    private String[] getNextSwitchLabels() {
+        return new String[] { "__switch__" + switchLabelCounter + "_", "__endswitch__" + switchLabelCounter++ };
     }
 
     private void emit(String ...code) {
@@ -39,6 +102,15 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         emit("\n");
     }
 
+    private void emitLabel(int indentation, String label, JmmNode node) {
+        emitLine(indentation, label, ":");
+        labelLines.put(label, getLine(node));
+    }
+
+    private static int getLine(JmmNode node) {
+        return node.getOptional("lineStart").map(Integer::parseInt).orElse(-1);
+    }
+
     private void emitInvokeSpecialInit(int indentation, String symbol) {
         emitLine(indentation, "invokespecial(" + symbol + ", \"<init>\").V;");
     }
@@ -60,6 +132,10 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         return reports;
     }
 
+    public Map<String, Map<String, Integer>> getSourceLines() {
+        return sourceLines;
+    }
+
     @Override
     protected void buildVisitor() {
         setDefaultVisit(this::visitChildren);
@@ -88,7 +164,7 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         addVisit("ContinueStatement", this::visitBreakOrContinueStatement);
         addVisit("ExpressionStatement", this::visitExpressionStatement);
 
-        addVisit("ForTerm", this::visitForTerminal);
+        addVisit("For_inc", this::visitForIncrement);
 
         // Expression
         addVisit("ExplicitPriority", this::visitExplicitPriority);
@@ -152,7 +228,16 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         for (var field : table.getFields())
             emitLine(indentation + 4, ".field ", OllirUtils.toOllirSymbol(field), ";");
 
-        visitChildren(node, indentation + 4);
+        var definitions = new ArrayList<JmmNode>();
+
+        for (var child : node.getChildren()) {
+            if (child.getKind().equals("Program_definition"))
+                definitions.addAll(child.getChildren());
+            else
+                visit(child, indentation + 4);
+        }
+
+        emitDefinitions(definitions, indentation + 4);
 
         if (!visitedConstructor) {
             emitLine(indentation + 4, ".construct ", table.getClassName(), "().V {");
@@ -165,6 +250,24 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         return null;
     }
 
+    // Each definition is emitted by its own visitor, then the code is joined in declaration order
+    private void emitDefinitions(List<JmmNode> definitions, int indentation) {
+        var emitters = new OllirVisitor[definitions.size()];
+        var range = IntStream.range(0, definitions.size());
+
+        (parallel ? range.parallel() : range).forEach(i -> {
+            emitters[i] = new OllirVisitor(table);
+            emitters[i].visit(definitions.get(i), indentation);
+        });
+
+        for (var emitter : emitters) {
+            code.append(emitter.code);
+            reports.addAll(emitter.reports);
+            sourceLines.putAll(emitter.sourceLines);
+            visitedConstructor |= emitter.visitedConstructor;
+        }
+    }
+
     protected String visitMethodDeclaration(JmmNode node, Integer indentation) {
         var method = table.getMethod(node.get("methodName"));
         var returnType = OllirUtils.toOllirType(method.getReturnType());
@@ -182,6 +285,10 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
 
         emitLine(indentation, "}");
 
+        // Lets the backend map the generated code back to the source
+        labelLines.put(Profile.ENTRY, getLine(node));
+        sourceLines.put(method.getName(), labelLines);
+
         return null;
     }
 
@@ -209,6 +316,9 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
 
         emitLine(indentation, "}");
 
+        labelLines.put(Profile.ENTRY, getLine(node));
+        sourceLines.put("<init>", labelLines);
+
         return null;
     }
 
@@ -247,100 +357,164 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
     protected String visitIfStatement(JmmNode node, Integer indentation) {
         var conditionNode = node.getJmmChild(0);
         conditionNode.put("type", "boolean");
-        var condition = visit(conditionNode, indentation);
-        var ifLabels = OllirUtils.getNextIfLabels();
+        var ifLabels = getNextIfLabels();
 
-        emitLine(indentation, "if(!.bool ", condition, ") goto ", ifLabels[0], ";");
+        emitConditionalJump(conditionNode, false, ifLabels[0], indentation);
 
         visit(node.getChildren().get(1), indentation + 4);
 
         emitLine(indentation + 4, "goto ", ifLabels[1], ";");
-        emitLine(indentation, ifLabels[0], ":");
+        emitLabel(indentation, ifLabels[0], node);
 
         visit(node.getChildren().get(2), indentation + 4);
 
-        emitLine(indentation, ifLabels[1], ":");
+        emitLabel(indentation, ifLabels[1], node);
 
         return null;
     }
 
     protected String visitWhileStatement(JmmNode node, Integer indentation) {
-        var whileLabels = OllirUtils.getNextWhileLabels();
+        var whileLabels = getNextWhileLabels();
 
-        node.put("continueLabel", whileLabels[0]);
+        node.put("continueLabel", whileLabels[2]);
         node.put("breakLabel", whileLabels[1]);
 
-        emitLine(indentation, whileLabels[0], ":");
-
         var conditionNode = node.getJmmChild(0);
         conditionNode.put("type", "boolean");
-        var condition = visit(conditionNode, indentation + 4);
-        emitLine(indentation + 4, "if(!.bool ", condition, ") goto ", whileLabels[1], ";");
+
+        // Rotated into a guarded do-while, so each iteration only runs the bottom test
+        emitConditionalJump(conditionNode, false, whileLabels[1], indentation);
+        emitLabel(indentation, whileLabels[0], node);
 
         visit(node.getChildren().get(1), indentation + 4);
 
-        emitLine(indentation + 4, "goto ", whileLabels[0], ";");
-        emitLine(indentation, whileLabels[1], ":");
+        emitLabel(indentation, whileLabels[2], node);
+        emitConditionalJump(conditionNode, true, whileLabels[0], indentation + 4);
+        emitLabel(indentation, whileLabels[1], node);
 
         return null;
     }
 
     protected String visitDoWhileStatement(JmmNode node, Integer indentation) {
-        var doWhileLabels = OllirUtils.getNextDoWhileLabels();
+        var doWhileLabels = getNextDoWhileLabels();
 
-        node.put("continueLabel", doWhileLabels[0]);
+        node.put("continueLabel", doWhileLabels[2]);
         node.put("breakLabel", doWhileLabels[1]);
 
-        emitLine(indentation, doWhileLabels[0], ":");
+        emitLabel(indentation, doWhileLabels[0], node);
 
         visit(node.getChildren().get(0), indentation + 4);
 
         var conditionNode = node.getChildren().get(1);
         conditionNode.put("type", "boolean");
-        conditionNode.put("topLevel", "true");
-        var condition = visit(conditionNode, indentation);
-        emitLine(indentation + 4, "if(", condition, ") goto ", doWhileLabels[0], ";");
-        emitLine(indentation, doWhileLabels[1], ":");
+
+        emitLabel(indentation, doWhileLabels[2], node);
+        emitConditionalJump(conditionNode, true, doWhileLabels[0], indentation + 4);
+        emitLabel(indentation, doWhileLabels[1], node);
 
         return null;
     }
 
     protected String visitForStatement(JmmNode node, Integer indentation) {
-        var forLabels = OllirUtils.getNextForLabels();
+        var forLabels = getNextForLabels();
 
-        node.put("continueLabel", forLabels[0]);
+        node.put("continueLabel", forLabels[2]);
         node.put("breakLabel", forLabels[1]);
 
         visit(node.getJmmChild(0), indentation);
-        emitLine(indentation, forLabels[0], ":");
 
-        var terminal = visit(node.getJmmChild(1), indentation + 4);
-        emitLine(indentation + 4, "if(!.bool ", terminal, ") goto ", forLabels[1], ";");
+        var terminal = node.getJmmChild(1);
+        var conditionNode = terminal.getNumChildren() > 0 ? terminal.getJmmChild(0) : null;
+
+        if (conditionNode != null) {
+            conditionNode.put("type", "boolean");
+            emitConditionalJump(conditionNode, false, forLabels[1], indentation);
+        }
+
+        emitLabel(indentation, forLabels[0], node);
 
         visit(node.getJmmChild(3), indentation + 4);
 
+        emitLabel(indentation, forLabels[2], node);
         visit(node.getJmmChild(2), indentation + 4);
-        emitLine(indentation + 4, "goto ", forLabels[0], ";");
-        emitLine(indentation, forLabels[1], ":");
+
+        if (conditionNode != null)
+            emitConditionalJump(conditionNode, true, forLabels[0], indentation + 4);
+        else
+            emitLine(indentation + 4, "goto ", forLabels[0], ";");
+
+        emitLabel(indentation, forLabels[1], node);
 
         return null;
     }
 
-    protected String visitForTerminal(JmmNode node, Integer indentation) {
-        if (node.getNumChildren() == 0)
-            return "1.bool";
+    protected String visitForIncrement(JmmNode node, Integer indentation) {
+        for (var child : node.getChildren()) {
+            child.put("topLevel", "true");
+            var s = visit(child, indentation);
 
-        var child = node.getJmmChild(0);
-        child.put("topLevel", node.get("topLevel"));
-        child.put("type", node.get("type"));
+            if (s != null)
+                emitLine(indentation, s, ";");
+        }
 
-        return visit(child, indentation);
+        return null;
+    }
+
+    private void emitConditionalJump(JmmNode conditionNode, boolean jumpIf, String label, Integer indentation) {
+        var kind = conditionNode.getKind();
+        var op = conditionNode.getOptional("op").orElse("");
+
+        switch (kind) {
+            case "ExplicitPriority" -> {
+                emitConditionalJump(conditionNode.getJmmChild(0), jumpIf, label, indentation);
+                return;
+            }
+            case "UnaryPreOp" -> {
+                if (op.equals("!")) {
+                    emitConditionalJump(conditionNode.getJmmChild(0), !jumpIf, label, indentation);
+                    return;
+                }
+            }
+            case "LiteralExpression" -> {
+                if (conditionNode.get("value").equals(String.valueOf(jumpIf)))
+                    emitLine(indentation, "goto ", label, ";");
+                return;
+            }
+            case "BinaryOp" -> {
+                // Comparisons are branched on directly, inverting them when jumping on a false condition
+                if (OllirUtils.isRelationalOperator(op)) {
+                    var condition = binaryOpLine(conditionNode, jumpIf ? op : OllirUtils.invertRelationalOperator(op), indentation);
+                    emitLine(indentation, "if(", condition, ") goto ", label, ";");
+                    return;
+                }
+
+                // a && b jumps on true only if both hold, a || b jumps on false only if both fail
+                if (op.equals("&&") || op.equals("||")) {
+                    var lhsNode = conditionNode.getJmmChild(0);
+                    var rhsNode = conditionNode.getJmmChild(1);
+
+                    if (jumpIf == op.equals("||")) {
+                        emitConditionalJump(lhsNode, jumpIf, label, indentation);
+                        emitConditionalJump(rhsNode, jumpIf, label, indentation);
+                    } else {
+                        var skipLabel = getNextConditionLabel();
+                        emitConditionalJump(lhsNode, !jumpIf, skipLabel, indentation);
+                        emitConditionalJump(rhsNode, jumpIf, label, indentation);
+                        emitLabel(indentation, skipLabel, conditionNode);
+                    }
+                    return;
+                }
+            }
+        }
+
+        var condition = visit(conditionNode, indentation);
+        emitLine(indentation, "if(", jumpIf ? "" : "!.bool ", condition, ") goto ", label, ";");
     }
 
     protected String visitForEachStatement(JmmNode node, Integer indentation) {
-        var forEachLabels = OllirUtils.getNextForEachLabels();
+        var forEachLabels = getNextForEachLabels();
 
-        node.put("continueLabel", forEachLabels[0]);
+        node.put("continueLabel", forEachLabels[5]);
         node.put("breakLabel", forEachLabels[1]);
 
         var type = node.getJmmChild(0).get("type");
@@ -349,30 +523,39 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         var arrayType = OllirUtils.toOllirType(type + "[]");
 
         var arrayNode = node.getJmmChild(1);
-        arrayNode.put("topLevel", "true");
+        var bodyNode = node.getJmmChild(2);
         arrayNode.put("type", type + "[]");
         var array = visit(arrayNode, indentation);
 
-        emitLine(indentation, forEachLabels[2], ".", arrayType, " :=.", arrayType, " ", array, ";");
-        emitLine(indentation, forEachLabels[3], ".i32 :=.i32 arraylength(", forEachLabels[2], ".", arrayType, ").i32;");
-        emitLine(indentation, forEachLabels[4], ".i32 :=.i32 0.i32;");
+        // The array is only evaluated once, so it needs a copy only if the body can reassign it
+        if (arrayNode.getKind().equals("IdentifierExpression") && Utils.modifiedVariables(bodyNode).contains(arrayNode.get("id"))) {
+            emitLine(indentation, forEachLabels[2], ".", arrayType, " :=.", arrayType, " ", array, ";");
+            array = forEachLabels[2] + "." + arrayType;
+        }
 
-        emitLine(indentation, forEachLabels[0], ":");
-        emitLine(indentation + 4, "if(", forEachLabels[4], ".i32 >=.bool ", forEachLabels[3], ".i32) goto ", forEachLabels[1], ";");
-        emitLine(indentation + 4, id, ".", ollirType, " :=.", ollirType, " ", forEachLabels[2], "[", forEachLabels[4], ".i32].", ollirType, ";");
+        var length = forEachLabels[3] + ".i32";
+        var index = forEachLabels[4] + ".i32";
 
-        visit(node.getJmmChild(2), indentation + 4);
+        emitLine(indentation, length, " :=.i32 arraylength(", array, ").i32;");
+        emitLine(indentation, index, " :=.i32 0.i32;");
+        emitLine(indentation, "if(", index, " >=.bool ", length, ") goto ", forEachLabels[1], ";");
 
-        emitLine(indentation + 4, forEachLabels[4], ".i32 :=.i32 ", forEachLabels[4], ".i32 +.i32 1.i32;");
-        emitLine(indentation + 4, "goto ", forEachLabels[0], ";");
-        emitLine(indentation, forEachLabels[1], ":");
+        emitLabel(indentation, forEachLabels[0], node);
+        // The index never leaves [0, length), but the element load still checks it at run time, like every array load
+        emitLine(indentation + 4, id, ".", ollirType, " :=.", ollirType, " ", array, "[", index, "].", ollirType, ";");
+
+        visit(bodyNode, indentation + 4);
+
+        emitLabel(indentation, forEachLabels[5], node);
+        emitLine(indentation + 4, index, " :=.i32 ", index, " +.i32 1.i32;");
+        emitLine(indentation + 4, "if(", index, " <.bool ", length, ") goto ", forEachLabels[0], ";");
+        emitLabel(indentation, forEachLabels[1], node);
 
         return null;
     }
 
-
     protected String visitSwitchStatement(JmmNode node, Integer indentation) {
-        var switchLabels = OllirUtils.getNextSwitchLabels();
+        var switchLabels = getNextSwitchLabels();
 
         node.put("breakLabel", switchLabels[1]);
 
@@ -398,11 +581,11 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         for (int i = 0; i < cases.size(); i++) {
             var _case = cases.get(i);
 
-            emitLine(indentation, switchLabels[0] + i, ":");
+            emitLabel(indentation, switchLabels[0] + i, node);
             visit(_case, indentation + 4);
         }
 
-        emitLine(indentation, switchLabels[1], ":");
+        emitLabel(indentation, switchLabels[1], node);
 
         return null;
     }
@@ -476,7 +659,7 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         if (node.getOptional("topLevel").isPresent())
             return line;
 
-        var temp = OllirUtils.getNextTemp() + "." + type;
+        var temp = getNextTemp() + "." + type;
         emitLine(indentation, temp, " :=.", type, " ", line, ";");
         emitInvokeSpecialInit(indentation, temp);
 
@@ -492,7 +675,7 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         if (node.getOptional("topLevel").isPresent())
             return line;
 
-        var temp = OllirUtils.getNextTemp() + "." + type;
+        var temp = getNextTemp() + "." + type;
         emitLine(indentation, temp, " :=." + type + " ", line, ";");
 
         return temp;
@@ -538,7 +721,7 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         if (node.getOptional("topLevel").isPresent())
             return line;
 
-        var temp = OllirUtils.getNextTemp() + "." + returnType;
+        var temp = getNextTemp() + "." + returnType;
         emitLine(indentation, temp, " :=.", returnType, " ", line, ";");
         return temp;
     }
@@ -560,7 +743,7 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         if (node.getOptional("topLevel").isPresent())
             return line;
 
-        var temp = OllirUtils.getNextTemp() + "." + type;
+        var temp = getNextTemp() + "." + type;
         emitLine(indentation, temp, " :=.", type, " ", line, ";");
 
         return temp;
@@ -581,7 +764,7 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         if (node.getOptional("topLevel").isPresent())
             return line;
 
-        var temp = OllirUtils.getNextTemp() + "." + type;
+        var temp = getNextTemp() + "." + type;
         emitLine(indentation, temp, " :=.", type, " ", line, ";");
 
         return temp;
@@ -589,6 +772,10 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
 
     // TODO
     private String visitUnaryPostOp(JmmNode jmmNode, Integer indentation) {
+        // The previous value is only needed when the result is used
+        if (jmmNode.getOptional("topLevel").isPresent())
+            return visitUnaryPreOp(jmmNode, indentation);
+
         var lhsNode = jmmNode.getJmmChild(0);
         lhsNode.put("type", jmmNode.get("type"));
         lhsNode.put("topLevel", "true");
@@ -597,11 +784,11 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         var type = OllirUtils.toOllirType(jmmNode.get("type"));
         var operator = jmmNode.get("op").charAt(0) + "." + type;
 
-        var temp = OllirUtils.getNextTemp() + "." + type;
+        var temp = getNextTemp() + "." + type;
         emitLine(indentation, temp, " :=.", type, " ", lhs, ";");
 
         if (lhs.startsWith("getfield(") || lhs.startsWith("getstatic(")) {
-            var temp2 = OllirUtils.getNextTemp() + "." + type;
+            var temp2 = getNextTemp() + "." + type;
             emitLine(indentation, temp2, " :=.", type, " ", temp, " ", operator, " 1.", type, ";");
             emitLine(indentation, "put", lhs.substring(3, lhs.lastIndexOf(")")), ", ", temp2, ").V;");
         } else {
@@ -628,14 +815,14 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
             operator = operator.substring(1);
 
             if (rhs.startsWith("getfield(") || rhs.startsWith("getstatic(")) {
-                var temp = OllirUtils.getNextTemp() + "." + type;
+                var temp = getNextTemp() + "." + type;
                 emitLine(indentation, temp, " :=.", type, " ", rhs, ";");
                 emitLine(indentation, temp, " :=.", type, " ", temp, " ", operator, " 1.", type, ";");
                 emitLine(indentation, "put", rhs.substring(3, rhs.lastIndexOf(")")), ", ", temp, ").V;");
-                return temp;
+                return jmmNode.getOptional("topLevel").isPresent() ? null : temp;
             } else {
                 emitLine(indentation, rhs, " :=.", type, " ", rhs, " ", operator, " 1.", type, ";");
-                return rhs;
+                return jmmNode.getOptional("topLevel").isPresent() ? null : rhs;
             }
         }
 
@@ -645,13 +832,26 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         if (jmmNode.getOptional("topLevel").isPresent())
             return line;
 
-        var temp = OllirUtils.getNextTemp() + "." + type;
+        var temp = getNextTemp() + "." + type;
         emitLine(indentation, temp, " :=.", type, " ", line, ";");
 
         return temp;
     }
 
     private String visitBinaryOp(JmmNode jmmNode, Integer indentation) {
+        var line = binaryOpLine(jmmNode, jmmNode.get("op"), indentation);
+
+        if (jmmNode.getOptional("topLevel").isPresent())
+            return line;
+
+        var type = OllirUtils.toOllirType(jmmNode.get("type"));
+        var temp = getNextTemp() + "." + type;
+        emitLine(indentation, temp, " :=.", type, " ", line, ";");
+
+        return temp;
+    }
+
+    private String binaryOpLine(JmmNode jmmNode, String op, Integer indentation) {
         var lhsNode = jmmNode.getJmmChild(0);
         var rhsNode = jmmNode.getJmmChild(1);
 
@@ -662,27 +862,15 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         var lhs = visit(lhsNode, indentation);
         var rhs = visit(rhsNode, indentation);
 
-        type = OllirUtils.toOllirType(jmmNode.get("type"));
-        var operator = jmmNode.get("op") + "." + type;
-
-        var line = lhs + " " + operator + " " + rhs;
-
-        if (jmmNode.getOptional("topLevel").isPresent())
-            return line;
-
-        var temp = OllirUtils.getNextTemp() + "." + type;
-        emitLine(indentation, temp, " :=.", type, " ", line, ";");
-
-        return temp;
+        return lhs + " " + op + "." + OllirUtils.toOllirType(jmmNode.get("type")) + " " + rhs;
     }
 
     protected String visitTernaryOp(JmmNode node, Integer indentation) {
-        var condition = visit(node.getJmmChild(0), indentation);
-        var ifLabels = OllirUtils.getNextIfLabels();
+        var ifLabels = getNextIfLabels();
         var type = OllirUtils.toOllirType(node.get("type"));
-        var temp = OllirUtils.getNextTemp() + "." + type;
+        var temp = getNextTemp() + "." + type;
 
-        emitLine(indentation, "if (!.bool ", condition, ") goto ", ifLabels[0], ";");
+        emitConditionalJump(node.getJmmChild(0), false, ifLabels[0], indentation);
 
         var lhsNode = node.getJmmChild(1);
         lhsNode.put("topLevel", "true");
@@ -690,14 +878,14 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
         emitLine(indentation + 4, temp, " :=.", type, " ", lhs, ";");
 
         emitLine(indentation + 4, "goto ", ifLabels[1], ";");
-        emitLine(indentation, ifLabels[0], ":");
+        emitLabel(indentation, ifLabels[0], node);
 
         var rhsNode = node.getJmmChild(2);
         rhsNode.put("topLevel", "true");
         var rhs = visit(rhsNode, indentation + 4);
         emitLine(indentation + 4, temp, " :=.", type, " ", rhs, ";");
 
-        emitLine(indentation, ifLabels[1], ":");
+        emitLabel(indentation, ifLabels[1], node);
 
         return temp;
     }
@@ -716,10 +904,10 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
 
         if (lhs.startsWith("getfield(") || lhs.startsWith("getstatic(")) {
             if (!operator.isEmpty()) {
-                var temp1 = OllirUtils.getNextTemp() + "." + type;
+                var temp1 = getNextTemp() + "." + type;
                 emitLine(indentation, temp1, " :=.", type, " ", lhs, ";");
 
-                var temp2 = OllirUtils.getNextTemp() + "." + type;
+                var temp2 = getNextTemp() + "." + type;
                 var rhs = visit(rhsNode, indentation);
                 emitLine(indentation, temp2, " :=.", type, " ", temp1, " ", operator, ".", type, " ", rhs, ";");
 
@@ -761,7 +949,7 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
                 if (node.getOptional("topLevel").isPresent())
                     yield line;
 
-                var temp = OllirUtils.getNextTemp() + ".String";
+                var temp = getNextTemp() + ".String";
                 emitLine(indentation, temp, " :=.String " + line + ";");
                 yield temp;
             }
@@ -817,7 +1005,7 @@ public class OllirVisitor extends AJmmVisitor<Integer, String> {
                 if (node.getOptional("topLevel").isPresent())
                     return line;
 
-                var temp = OllirUtils.getNextTemp() + "." + type;
+                var temp = getNextTemp() + "." + type;
                 emitLine(indentation, temp, " :=.", type, " ", line, ";");
                 return temp;
             }
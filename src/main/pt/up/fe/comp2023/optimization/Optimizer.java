@@ -9,21 +9,21 @@ import pt.up.fe.comp.jmm.report.ReportType;
 import pt.up.fe.comp.jmm.report.Stage;
 import pt.up.fe.comp2023.analysis.JmmSymbolTable;
 
-import java.util.Collections;
-import java.util.regex.Pattern;
-
 public class Optimizer implements JmmOptimization {
-    private final JmmVisitor<?, Boolean>[] visitors = new JmmVisitor[]{
-            new ASTSimplificationVisitor(),
-            new ConstantFoldingVisitor(),
-            new ConstantPropagationVisitor()
-    };
-
     @Override
     public JmmSemanticsResult optimize(JmmSemanticsResult semanticsResult) {
         if (!Boolean.parseBoolean(semanticsResult.getConfig().get("optimize")))
             return semanticsResult;
 
+        int unrollFactor = Integer.parseInt(semanticsResult.getConfig().getOrDefault("unrollFactor", String.valueOf(LoopUnrollingVisitor.DEFAULT_FACTOR)));
+
+        JmmVisitor<?, Boolean>[] visitors = new JmmVisitor[]{
+                new ASTSimplificationVisitor(),
+                new ConstantFoldingVisitor(),
+                new ConstantPropagationVisitor(),
+                new LoopUnrollingVisitor(unrollFactor, Profile.fromConfig(semanticsResult.getConfig()))
+        };
+
         var node = semanticsResult.getRootNode();
 
         var cont = true;
@@ -33,65 +33,42 @@ public class Optimizer implements JmmOptimization {
                 cont |= visitor.visit(node);
         }
 
-        semanticsResult.getReports().add(new Report(ReportType.DEBUG, Stage.OPTIMIZATION, -1, -1, "Optimized AST:\n" + node.toTree()));
+        if (Boolean.parseBoolean(semanticsResult.getConfig().get("debug")))
+            semanticsResult.getReports().add(new Report(ReportType.DEBUG, Stage.OPTIMIZATION, -1, -1, "Optimized AST:\n" + node.toTree()));
 
         return JmmOptimization.super.optimize(semanticsResult);
     }
 
     @Override
     public OllirResult toOllir(JmmSemanticsResult jmmSemanticsResult) {
-        OllirVisitor ollirVisitor = new OllirVisitor(((JmmSymbolTable) jmmSemanticsResult.getSymbolTable()));
+        var parallel = Boolean.parseBoolean(jmmSemanticsResult.getConfig().get("parallel"));
+        OllirVisitor ollirVisitor = new OllirVisitor(((JmmSymbolTable) jmmSemanticsResult.getSymbolTable()), parallel);
         ollirVisitor.visit(jmmSemanticsResult.getRootNode(), 0);
 
         String ollirResult = ollirVisitor.getOllirCode();
         var reports = ollirVisitor.getReports();
 
-        reports.add(new Report(ReportType.DEBUG, Stage.OPTIMIZATION, -1, -1, "Generated OLLIR:\n" + ollirResult));
+        if (Boolean.parseBoolean(jmmSemanticsResult.getConfig().get("debug")))
+            reports.add(new Report(ReportType.DEBUG, Stage.OPTIMIZATION, -1, -1, "Generated OLLIR:\n" + ollirResult));
 
-        return new OllirResult(jmmSemanticsResult, ollirResult, reports);
+        return new JmmOllirResult(jmmSemanticsResult, ollirResult, reports, ollirVisitor.getSourceLines());
     }
 
     @Override
     public OllirResult optimize(OllirResult ollirResult) {
-        int maxRegsAllowed = Integer.parseInt(ollirResult.getConfig().getOrDefault("registerAllocation", "-1"));
-
-        if (maxRegsAllowed >= 0) {
-            try {
-                ollirResult = new RegisterAllocator().optimizeRegisters(ollirResult);
-            } catch (Exception e) {
-                ollirResult.getReports().add(new Report(ReportType.ERROR, Stage.OPTIMIZATION, -1, -1, "Register limit exceeded"));
-            }
-        }
+        var config = ollirResult.getConfig();
+        int maxRegsAllowed = Integer.parseInt(config.getOrDefault("registerAllocation", "-1"));
 
-        if (!Boolean.parseBoolean(ollirResult.getConfig().get("optimize")))
-            return ollirResult;
+        var parallelism = Boolean.parseBoolean(config.get("parallel"))
+                ? Integer.parseInt(config.getOrDefault("parallelism", String.valueOf(Runtime.getRuntime().availableProcessors())))
+                : 1;
+        var passManager = new OllirPassManager(parallelism, Boolean.parseBoolean(config.get("debug")));
 
-        var code = ollirResult.getOllirCode();
-        var newCode = new StringBuilder();
-
-        var ifPattern = Pattern.compile("(\\w+\\.bool)\\s*:=\\.bool\\s*(\\w+\\.\\w+\\s*(<|>|==|!=|<=|>=)\\.bool\\s*\\w+\\.\\w+);\\n\\s*if\\s*\\(!\\.bool\\s*\\1\\)");
-        var ifMatcher = ifPattern.matcher(code);
-
-        while (ifMatcher.find()) {
-            var condition = ifMatcher.group(2);
-            var op = ifMatcher.group(3);
-
-            condition = switch (op) {
-                case "<" -> condition.replace("<", ">=");
-                case ">" -> condition.replace(">", "<=");
-                case "==" -> condition.replace("==", "!=");
-                case "!=" -> condition.replace("!=", "==");
-                case "<=" -> condition.replace("<=", ">");
-                case ">=" -> condition.replace(">=", "<");
-                default -> condition;
-            };
-
-            ifMatcher.appendReplacement(newCode, "if (" + condition + ")");
-        }
-        ifMatcher.appendTail(newCode);
+        if (maxRegsAllowed >= 0)
+            passManager.register(new ControlFlowPass()).register(new RegisterAllocator(maxRegsAllowed, Profile.fromConfig(config)));
 
-        ollirResult.getReports().add(new Report(ReportType.DEBUG, Stage.OPTIMIZATION, -1, -1, "Optimized OLLIR:\n" + newCode));
+        passManager.run(ollirResult);
 
-        return new OllirResult(new JmmSemanticsResult(null, ollirResult.getSymbolTable(), Collections.emptyList(), ollirResult.getConfig()), newCode.toString(), ollirResult.getReports());
+        return ollirResult;
     }
 }
@@ -0,0 +1,177 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.CondBranchInstruction;
+import org.specs.comp.ollir.GotoInstruction;
+import org.specs.comp.ollir.Instruction;
+import org.specs.comp.ollir.InstructionType;
+import org.specs.comp.ollir.Method;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Execution counts written by a program compiled with {@code --profile=<file>}, read back to guide the optimizations of
+ * the next compilation.
+ * <p>
+ * The file has a line per counter with the method, the block, its source line and its count, separated by tabs. A
+ * block is named by the label it starts with, or by the last label before it and how many blocks it is after that
+ * label, so the names only match when the program is compiled again from the same source with the same options.
+ * Blocks that are not in the profile are treated as if there was no profile at all.
+ * <p>
+ * The header also has a fingerprint of the blocks of each profiled method. The counts of a method whose blocks have
+ * changed since, like when the profile made loops unroll differently, are not used, only those of its source lines.
+ */
+public class Profile {
+    public static final String CONFIG_KEY = "profileUse";
+    // The entry counter of a method has no block name
+    public static final String ENTRY = "";
+    // Header lines with the fingerprint of a method start with this, followed by the method and the fingerprint
+    public static final String FINGERPRINT = "# fingerprint";
+
+    // Blocks that ran at least 1/HOT_FRACTION as many times as the hottest block are hot
+    private static final int HOT_FRACTION = 10;
+
+    private final Map<String, Long> counts = new HashMap<>();
+    private final Map<String, String> fingerprints = new HashMap<>();
+    private final Map<Integer, Long> lineCounts = new HashMap<>();
+    private long maxCount;
+
+    private Profile() {
+    }
+
+    /**
+     * The profile given in the config, or null if the program is compiled without one.
+     */
+    public static Profile fromConfig(Map<String, String> config) {
+        var path = config.get(CONFIG_KEY);
+
+        if (path == null)
+            return null;
+
+        try {
+            return read(Path.of(path));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read profile '" + path + "'.", e);
+        }
+    }
+
+    public static Profile read(Path path) throws IOException {
+        var profile = new Profile();
+
+        for (var line : Files.readAllLines(path)) {
+            var fields = line.split("\t", -1);
+
+            if (fields.length == 3 && fields[0].equals(FINGERPRINT))
+                profile.fingerprints.put(fields[1], fields[2]);
+
+            if (line.isBlank() || line.startsWith("#"))
+                continue;
+
+            if (fields.length != 4)
+                throw new IOException("Invalid profile line '" + line + "'");
+
+            try {
+                profile.add(fields[0], fields[1], Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid profile line '" + line + "'", e);
+            }
+        }
+
+        return profile;
+    }
+
+    private void add(String method, String block, int line, long count) {
+        counts.put(method + '\t' + block, count);
+
+        if (block.equals(ENTRY))
+            return;
+
+        lineCounts.merge(line, count, Math::max);
+        maxCount = Math.max(maxCount, count);
+    }
+
+    // Constructors are all called <init>, like in the class file
+    public static String getMethodName(Method method) {
+        return method.isConstructMethod() ? "<init>" : method.getMethodName();
+    }
+
+    /**
+     * The names of the blocks of a method, indexed like its instructions, with null for the instructions that do not
+     * start a block.
+     */
+    public static String[] getBlockNames(Method method) {
+        var instructions = method.getInstructions();
+        var names = new String[instructions.size()];
+        var label = "";
+        var position = 0;
+
+        for (int i = 0; i < instructions.size(); i++) {
+            var instruction = instructions.get(i);
+            var labels = method.getLabels(instruction);
+
+            if (!labels.isEmpty()) {
+                label = labels.get(0);
+                position = 1;
+                names[i] = label;
+            } else if (i == 0 || endsBlock(instructions.get(i - 1))) {
+                names[i] = label + "+" + position++;
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * A hash of the labels, jumps and instruction kinds of a method, which changes whenever its blocks do.
+     */
+    public static String fingerprint(Method method) {
+        var shape = new StringBuilder();
+
+        for (var instruction : method.getInstructions()) {
+            method.getLabels(instruction).forEach(label -> shape.append(label).append(':'));
+            shape.append(instruction.getInstType());
+
+            if (instruction instanceof GotoInstruction jump)
+                shape.append(' ').append(jump.getLabel());
+            else if (instruction instanceof CondBranchInstruction branch)
+                shape.append(' ').append(branch.getLabel());
+
+            shape.append(';');
+        }
+
+        return Integer.toHexString(shape.toString().hashCode());
+    }
+
+    public static boolean endsBlock(Instruction instruction) {
+        var type = instruction.getInstType();
+        return type == InstructionType.BRANCH || type == InstructionType.GOTO || type == InstructionType.RETURN;
+    }
+
+    /**
+     * Whether the blocks of the method are the same as when it was profiled, so its block counts can be used.
+     */
+    public boolean matches(Method method) {
+        return fingerprint(method).equals(fingerprints.get(getMethodName(method)));
+    }
+
+    /**
+     * How many times the block ran, or -1 if it is not in the profile.
+     */
+    public long getCount(String method, String block) {
+        return counts.getOrDefault(method + '\t' + block, -1L);
+    }
+
+    /**
+     * How many times the hottest block of a source line ran, or -1 if the line has no blocks in the profile.
+     */
+    public long getLineCount(int line) {
+        return lineCounts.getOrDefault(line, -1L);
+    }
+
+    public boolean isHot(long count) {
+        return count > 0 && count * HOT_FRACTION >= maxCount;
+    }
+}
@@ -1,14 +1,12 @@
 package pt.up.fe.comp2023.optimization;
 
 import org.specs.comp.ollir.*;
-import pt.up.fe.comp.jmm.ollir.OllirResult;
-import pt.up.fe.specs.util.graphs.Graph;
 
-import javax.swing.tree.TreeNode;
 import java.util.*;
-import java.util.stream.Collectors;
 
-public class RegisterAllocator {
+public class RegisterAllocator implements OllirPass {
+    public static final String NAME = "registerAllocation";
+
     private static class Node {
         Set<String> defs = new HashSet<>();
         Set<String> uses = new HashSet<>();
@@ -16,69 +14,114 @@ public class RegisterAllocator {
         Set<String> outs = new HashSet<>();
     }
 
-    public OllirResult optimizeRegisters(OllirResult ollirResult) {
-        ClassUnit ollirClass = ollirResult.getOllirClass();
+    private final int maxRegsAllowed;
+    private final Profile profile;
 
-        for (Method method : ollirClass.getMethods()) {
-            var nodes = parseVariables(method);
-            var graph = buildInterferenceGraph(nodes);
-            var colorMap = colorGraph(graph);
+    public RegisterAllocator(int maxRegsAllowed) {
+        this(maxRegsAllowed, null);
+    }
 
-            int maxRegsAllowed = Integer.parseInt(ollirResult.getConfig().get("registerAllocation"));
-            var colors = new TreeSet<>(colorMap.values());
-            if (maxRegsAllowed > 0 && colors.size() > maxRegsAllowed)
-                throw new RuntimeException("More regs than supposed");
+    // With a profile, the uses of a variable are weighted by how many times their block ran
+    public RegisterAllocator(int maxRegsAllowed, Profile profile) {
+        this.maxRegsAllowed = maxRegsAllowed;
+        this.profile = profile;
+    }
 
-            replaceWithRegisters(method, colorMap);
-        }
+    @Override
+    public String getName() {
+        return NAME;
+    }
 
-        return ollirResult;
+    @Override
+    public List<String> getDependencies() {
+        return List.of(ControlFlowPass.NAME);
     }
 
+    @Override
+    public void run(Method method) {
+        var locals = getLocals(method);
+        var nodes = parseVariables(method, locals);
+        var graph = buildInterferenceGraph(nodes, locals);
+        var colorMap = orderByWeight(colorGraph(graph), getWeights(method, nodes));
+
+        // "this" and the parameters keep their registers, locals are placed after them
+        int firstRegister = (method.isStaticMethod() ? 0 : 1) + method.getParams().size();
+        int numColors = new HashSet<>(colorMap.values()).size();
+
+        if (maxRegsAllowed > 0 && firstRegister + numColors > maxRegsAllowed)
+            throw new RuntimeException("Register limit exceeded, " + (firstRegister + numColors) + " registers needed");
+
+        replaceWithRegisters(method, colorMap, firstRegister);
+    }
+
+    @Override
+    public String describe(Method method) {
+        var registers = new HashSet<Integer>();
+
+        for (var descriptor : method.getVarTable().values())
+            registers.add(descriptor.getVirtualReg());
+
+        return registers.size() + (registers.size() == 1 ? " register" : " registers");
+    }
+
+    private Set<String> getLocals(Method method) {
+        Set<String> locals = new HashSet<>();
+
+        for (var entry : method.getVarTable().entrySet())
+            if (entry.getValue().getScope() == VarScope.LOCAL && !entry.getKey().equals("this"))
+                locals.add(entry.getKey());
 
-    private List<Node> parseVariables(Method method) {
+        return locals;
+    }
+
+    private List<Node> parseVariables(Method method, Set<String> locals) {
         List<Node> nodes = new ArrayList<>();
 
         // Create empty sets for live-ins and live-outs of instructions
         Map<Instruction, Set<String>> liveIns = new HashMap<>();
         Map<Instruction, Set<String>> liveOuts = new HashMap<>();
+        Map<Instruction, Set<String>> defs = new HashMap<>();
+        Map<Instruction, Set<String>> uses = new HashMap<>();
 
         // Initialize live-ins and live-outs with empty sets for all instructions
         for (Instruction instruction : method.getInstructions()) {
             liveIns.put(instruction, new HashSet<>());
             liveOuts.put(instruction, new HashSet<>());
+            defs.put(instruction, SetUtils.intersection(getDefs(instruction), locals));
+            uses.put(instruction, SetUtils.intersection(getUses(instruction), locals));
         }
 
-        // Perform the live-in/live-out analysis iteratively until convergence
+        // Perform the live-in/live-out analysis iteratively until convergence, going backwards converges faster
+        var instructions = new ArrayList<>(method.getInstructions());
+        Collections.reverse(instructions);
+
         boolean changed;
         do {
             changed = false;
-            for (Instruction instruction : method.getInstructions()) {
-                Set<String> oldLiveIn = new HashSet<>(liveIns.get(instruction));
-                Set<String> oldLiveOut = new HashSet<>(liveOuts.get(instruction));
-
-                // Compute live-in
-                Set<String> liveIn = new HashSet<>(getUses(instruction));
-                liveIn.addAll(SetUtils.difference(liveOuts.get(instruction), getDefs(instruction)));
-
+            for (Instruction instruction : instructions) {
                 // Compute live-out
                 Set<String> liveOut = new HashSet<>();
                 for (var successor : instruction.getSuccessors())
-                    liveOut.addAll(liveIns.get((Instruction) successor));
+                    if (successor instanceof Instruction successorInstruction)
+                        liveOut.addAll(liveIns.get(successorInstruction));
 
-                liveIns.put(instruction, liveIn);
-                liveOuts.put(instruction, liveOut);
+                // Compute live-in
+                Set<String> liveIn = new HashSet<>(uses.get(instruction));
+                liveIn.addAll(SetUtils.difference(liveOut, defs.get(instruction)));
 
-                if (!oldLiveIn.equals(liveIn) || !oldLiveOut.equals(liveOut))
+                if (!liveIns.get(instruction).equals(liveIn) || !liveOuts.get(instruction).equals(liveOut))
                     changed = true;
+
+                liveIns.put(instruction, liveIn);
+                liveOuts.put(instruction, liveOut);
             }
         } while (changed);
 
         // Create nodes with defs, uses, ins, and outs based on the live-ins and live-outs
         for (Instruction instruction : method.getInstructions()) {
             Node node = new Node();
-            node.defs.addAll(getDefs(instruction));
-            node.uses.addAll(getUses(instruction));
+            node.defs.addAll(defs.get(instruction));
+            node.uses.addAll(uses.get(instruction));
             node.ins.addAll(liveIns.get(instruction));
             node.outs.addAll(liveOuts.get(instruction));
             nodes.add(node);
@@ -87,12 +130,11 @@ public class RegisterAllocator {
         return nodes;
     }
 
-
     private Set<String> getDefs(Instruction instruction) {
         Set<String> defs = new HashSet<>();
 
         if (instruction instanceof AssignInstruction assign)
-            if (assign.getDest() instanceof Operand op)
+            if (assign.getDest() instanceof Operand op && !(op instanceof ArrayOperand))
                 defs.add(op.getName());
 
         return defs;
@@ -102,110 +144,139 @@ public class RegisterAllocator {
         Set<String> uses = new HashSet<>();
 
         if (instruction instanceof AssignInstruction assign) {
+            // Storing into an array element reads the array reference and the indexes
+            if (assign.getDest() instanceof ArrayOperand arr)
+                uses.addAll(getUses(arr));
+
             uses.addAll(getUses(assign.getRhs()));
         } else if (instruction instanceof  CallInstruction call) {
-            if (call.getInvocationType() != CallType.invokestatic && call.getFirstArg() instanceof Operand op)
-                uses.add(op.getName());
+            uses.addAll(getUses(call.getFirstArg()));
 
-            for (Element operand: call.getListOfOperands())
-                if (operand instanceof Operand op)
-                    uses.add(op.getName());
+            if (call.getListOfOperands() != null)
+                for (Element operand: call.getListOfOperands())
+                    uses.addAll(getUses(operand));
         } else if (instruction instanceof  ReturnInstruction ret) {
-            if (ret.getOperand() instanceof Operand op)
-                uses.add(op.getName());
+            if (ret.hasReturnValue())
+                uses.addAll(getUses(ret.getOperand()));
         } else if (instruction instanceof UnaryOpInstruction unop) {
-            if (unop.getOperand() instanceof Operand op)
-                uses.add(op.getName());
-
+            uses.addAll(getUses(unop.getOperand()));
         } else if (instruction instanceof BinaryOpInstruction binop) {
-            if (binop.getLeftOperand() instanceof Operand l_op)
-                uses.add(l_op.getName());
-            if (binop.getRightOperand() instanceof Operand r_op)
-                uses.add(r_op.getName());
-        } else if (instruction instanceof OpCondInstruction opcond) {
-            for (Element el: opcond.getOperands())
-                if (el instanceof Operand op)
-                    uses.add(op.getName());
+            uses.addAll(getUses(binop.getLeftOperand()));
+            uses.addAll(getUses(binop.getRightOperand()));
+        } else if (instruction instanceof CondBranchInstruction branch) {
+            uses.addAll(getUses(branch.getCondition()));
         } else if (instruction instanceof  PutFieldInstruction put) {
-            if (put.getThirdOperand() instanceof Operand op)
-                uses.add(op.getName());
-
-            if (put.getFirstOperand() instanceof Operand op)
-                uses.add(op.getName());
+            uses.addAll(getUses(put.getFirstOperand()));
+            uses.addAll(getUses(put.getThirdOperand()));
+        } else if (instruction instanceof GetFieldInstruction get) {
+            uses.addAll(getUses(get.getFirstOperand()));
         } else if (instruction instanceof SingleOpInstruction sop) {
-            if (sop.getSingleOperand() instanceof Operand op)
-                uses.add(op.getName());
+            uses.addAll(getUses(sop.getSingleOperand()));
         }
 
         return uses;
     }
 
+    private Set<String> getUses(Element element) {
+        Set<String> uses = new HashSet<>();
 
+        if (element instanceof Operand op) {
+            uses.add(op.getName());
 
+            if (op instanceof ArrayOperand arr)
+                for (var index : arr.getIndexOperands())
+                    uses.addAll(getUses(index));
+        }
 
-    private Map<String, Set<String>> buildInterferenceGraph(List<Node> nodes) {
-        Map<String, Set<String>> graph = new HashMap<>();
+        return uses;
+    }
 
-        for (Node node : nodes) {
-            for (var def : SetUtils.union(node.defs, node.uses)) {
-                graph.computeIfAbsent(def, s -> new HashSet<>());
-            }
+    private Map<String, Set<String>> buildInterferenceGraph(List<Node> nodes, Set<String> locals) {
+        Map<String, Set<String>> graph = new TreeMap<>();
+
+        for (var local : locals)
+            graph.put(local, new TreeSet<>());
 
+        for (Node node : nodes) {
             var pairs = SetUtils.generateCombinations(node.ins);
+
+            // A definition interferes with everything that is live after it, even if it is never read
             pairs.addAll(SetUtils.generateCombinations(SetUtils.union(node.outs, node.defs)));
 
             for (var pair : pairs) {
-                var neighbors = graph.get(pair.get(0));
-                neighbors.add(pair.get(1));
+                graph.get(pair.get(0)).add(pair.get(1));
+                graph.get(pair.get(1)).add(pair.get(0));
             }
         }
 
         return graph;
     }
 
-
     private Map<String, Integer> colorGraph(Map<String, Set<String>> graph) {
         Map<String, Integer> colorMap = new HashMap<>();
-        int numColors = graph.size();
 
-        Deque<String> stack = new ArrayDeque<>();
+        // Greedy coloring, most constrained variables first, ties broken by name so the result is deterministic
+        var order = new ArrayList<>(graph.keySet());
+        order.sort(Comparator.comparingInt((String node) -> -graph.get(node).size()).thenComparing(node -> node));
 
-        for (var node : graph.entrySet())
-            if (node.getValue().size() < numColors)
-                stack.push(node.getKey());
+        for (var node : order) {
+            var usedColors = new HashSet<Integer>();
 
-        while (!stack.isEmpty()) {
-            String node = stack.pop();
-            var neighbors = graph.get(node);
+            for (var neighbor : graph.get(node))
+                if (colorMap.containsKey(neighbor))
+                    usedColors.add(colorMap.get(neighbor));
 
-            boolean[] usedColors = new boolean[numColors];
-            for (String neighbor : neighbors) {
-                Integer neighborColor = colorMap.get(neighbor);
-                if (neighborColor != null)
-                    usedColors[neighborColor] = true;
-            }
+            int color = 0;
+            while (usedColors.contains(color))
+                color++;
 
-            for (int color = 0; color < numColors; color++) {
-                if (!usedColors[color]) {
-                    colorMap.put(node, color);
-                    break;
-                }
-            }
+            colorMap.put(node, color);
+        }
+
+        return colorMap;
+    }
 
-            for (var neighbor : neighbors) {
-                neighbors.remove(node);
-                if (neighbors.size() < numColors)
-                    stack.push(neighbor);
+    private Map<String, Long> getWeights(Method method, List<Node> nodes) {
+        Map<String, Long> weights = new HashMap<>();
+        var blockNames = Profile.getBlockNames(method);
+        var counted = profile != null && profile.matches(method);
+        long frequency = 1;
+
+        for (int i = 0; i < nodes.size(); i++) {
+            if (counted && blockNames[i] != null) {
+                var count = profile.getCount(Profile.getMethodName(method), blockNames[i]);
+                frequency = count < 0 ? 1 : count;
             }
+
+            for (var local : SetUtils.union(nodes.get(i).defs, nodes.get(i).uses))
+                weights.merge(local, frequency, Long::sum);
         }
 
-        return colorMap;
+        return weights;
+    }
+
+    // The heaviest colors get the first registers, which the JVM loads and stores with shorter instructions
+    private Map<String, Integer> orderByWeight(Map<String, Integer> colorMap, Map<String, Long> weights) {
+        Map<Integer, Long> colorWeights = new HashMap<>();
+
+        for (var entry : colorMap.entrySet())
+            colorWeights.merge(entry.getValue(), weights.getOrDefault(entry.getKey(), 0L), Long::sum);
+
+        var colors = new ArrayList<>(colorWeights.keySet());
+        colors.sort(Comparator.comparingLong((Integer color) -> -colorWeights.get(color)).thenComparing(color -> color));
+
+        Map<String, Integer> ordered = new HashMap<>();
+
+        for (var entry : colorMap.entrySet())
+            ordered.put(entry.getKey(), colors.indexOf(entry.getValue()));
+
+        return ordered;
     }
 
-    private void replaceWithRegisters(Method method, Map<String, Integer> colorMap) {
+    private void replaceWithRegisters(Method method, Map<String, Integer> colorMap, int firstRegister) {
         var varTable = method.getVarTable();
 
-        for (var key : colorMap.keySet())
-            varTable.get(key).setVirtualReg(colorMap.get(key));
+        for (var entry : colorMap.entrySet())
+            varTable.get(entry.getKey()).setVirtualReg(firstRegister + entry.getValue());
     }
-}
\ No newline at end of file
+}
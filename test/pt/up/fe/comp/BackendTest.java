@@ -13,9 +13,20 @@ package pt.up.fe.comp;
  */
 
 import org.junit.Test;
+import pt.up.fe.comp2023.CompilationCache;
+import pt.up.fe.comp2023.IncrementalCompiler;
+import pt.up.fe.comp2023.JasminRunner;
 import pt.up.fe.specs.util.SpecsIo;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class BackendTest {
 
@@ -23,10 +34,425 @@ public class BackendTest {
     public void testHelloWorld() {
         var result = TestUtils.backend(SpecsIo.getResource("pt/up/fe/comp/jmm/HelloWorld.jmm"));
         TestUtils.noErrors(result.getReports());
-        var output = result.run();
+        var output = new JasminRunner().run(result);
         assertEquals("Hello, World!", output.trim());
     }
 
+    private static final String INCREMENTAL_CODE = """
+            import io;
+            class Counter {
+                int total;
+                public int add(int n) {
+                    total = total + n;
+                    return total;
+                }
+                public int twice(int n) {
+                    return this.add(n) + this.add(n);
+                }
+                public static void main(String[] args) {
+                    Counter c;
+                    c = new Counter();
+                    io.println(c.twice(3));
+                }
+            }
+            """;
+
+    @Test
+    public void testIncrementalUnchanged() {
+        var compiler = new IncrementalCompiler();
+        compiler.compile(TestUtils.parse(INCREMENTAL_CODE));
+
+        var result = compiler.compile(TestUtils.parse(INCREMENTAL_CODE));
+        TestUtils.noErrors(result.getReports());
+
+        assertEquals(new IncrementalCompiler.Stats(3, 0), compiler.getStats());
+        assertEquals("9", new JasminRunner().run(result).trim());
+    }
+
+    @Test
+    public void testIncrementalEditedMethod() {
+        var code = INCREMENTAL_CODE.replace("this.add(n) + this.add(n)", "this.add(n) * 5");
+
+        var compiler = new IncrementalCompiler();
+        compiler.compile(TestUtils.parse(INCREMENTAL_CODE));
+
+        var result = compiler.compile(TestUtils.parse(code));
+        TestUtils.noErrors(result.getReports());
+
+        assertEquals(new IncrementalCompiler.Stats(2, 1), compiler.getStats());
+        assertEquals("15", new JasminRunner().run(result).trim());
+    }
+
+    @Test
+    public void testIncrementalChangedSignature() {
+        // Every method may call the changed one, so none of them is reused
+        var code = INCREMENTAL_CODE.replace("public int add(int n)", "public int add(int n, int m)").replace("this.add(n)", "this.add(n, 0)");
+
+        var compiler = new IncrementalCompiler();
+        compiler.compile(TestUtils.parse(INCREMENTAL_CODE));
+
+        var result = compiler.compile(TestUtils.parse(code));
+        TestUtils.noErrors(result.getReports());
+
+        assertEquals(new IncrementalCompiler.Stats(0, 3), compiler.getStats());
+        assertEquals("9", new JasminRunner().run(result).trim());
+    }
+
+    @Test
+    public void testIncrementalCache() throws IOException {
+        var folder = Files.createTempDirectory("jmm-cache");
+
+        try {
+            var cache = new CompilationCache(folder, CompilationCache.DEFAULT_MAX_SIZE);
+            new IncrementalCompiler(cache).compile(TestUtils.parse(INCREMENTAL_CODE));
+
+            // Another compiler, like the one of the next launch, finds the methods in the cache
+            var compiler = new IncrementalCompiler(cache);
+            var result = compiler.compile(TestUtils.parse(INCREMENTAL_CODE.replace("this.add(n) + this.add(n)", "this.add(n) * 5")));
+            TestUtils.noErrors(result.getReports());
+
+            assertEquals(new IncrementalCompiler.Stats(2, 1), compiler.getStats());
+            assertEquals("15", new JasminRunner().run(result).trim());
+
+            // The edited method is still analysed
+            TestUtils.mustFail(new IncrementalCompiler(cache).compile(TestUtils.parse(INCREMENTAL_CODE.replace("this.add(n) + this.add(n)", "this.add(true)"))).getReports());
+        } finally {
+            SpecsIo.deleteFolder(folder.toFile());
+        }
+    }
+
+    @Test
+    public void testRunnerInput() {
+        var result = TestUtils.backend("""
+                import io;
+                class Sum {
+                    public static void main(String[] args) {
+                        io.println(io.read() + io.read() * io.read());
+                    }
+                }
+                """);
+        TestUtils.noErrors(result.getReports());
+
+        // Each call reads a new line, unless the previous line had numbers left
+        assertEquals("14", new JasminRunner().run(result, "2\n3 4\n").trim());
+    }
+
+    @Test
+    public void testOutputOrder() {
+        var result = TestUtils.backend("""
+                import io;
+                import ioPlus;
+                class Order {
+                    public static void main(String[] args) {
+                        io.println(1);
+                        ioPlus.printResult(2);
+                        io.print(3);
+                        io.println(ioPlus.requestNumber());
+                    }
+                }
+                """);
+        TestUtils.noErrors(result.getReports());
+
+        // Helpers that print to System.out themselves flush io first, so its buffered output is never overtaken
+        var output = new JasminRunner().run(result, "4\n").replace("\r", "");
+        assertTrue(output, output.startsWith("1\nResult: 2\n3"));
+        assertTrue(output, output.endsWith("4\n"));
+    }
+
+    @Test
+    public void testRunnerTimeout() {
+        var result = TestUtils.backend("""
+                class Loop {
+                    public static void main(String[] args) {
+                        while (true) {
+                        }
+                    }
+                }
+                """);
+        TestUtils.noErrors(result.getReports());
+
+        var output = new JasminRunner(List.of(TestUtils.getLibsClasspath()), Duration.ofMillis(500)).run(result, List.of(), null);
+
+        assertEquals(-1, output.getReturnValue());
+        assertTrue(output.getStdErr().contains("timed out"));
+    }
+
+    @Test
+    public void testRunnerSeparateProcess() {
+        var sum = TestUtils.backend("""
+                import io;
+                class Sum {
+                    public static void main(String[] args) {
+                        io.println(io.read() + io.read());
+                    }
+                }
+                """);
+        var loop = TestUtils.backend("""
+                class Loop {
+                    public static void main(String[] args) {
+                        while (true) {
+                        }
+                    }
+                }
+                """);
+        TestUtils.noErrors(sum.getReports());
+        TestUtils.noErrors(loop.getReports());
+
+        // As on JVMs that cannot stop threads, a program that runs for too long is killed with its own JVM
+        var runner = new JasminRunner(List.of(TestUtils.getLibsClasspath()), Duration.ofSeconds(2), true);
+        assertEquals("5", runner.run(sum, "2\n3\n").trim());
+
+        var output = runner.run(loop, List.of(), null);
+        assertEquals(-1, output.getReturnValue());
+        assertTrue(output.getStdErr().contains("timed out"));
+    }
+
+    @Test
+    public void testProfile() {
+        var result = TestUtils.backend("""
+                import io;
+                class Count {
+                    public static void main(String[] args) {
+                        int i;
+                        i = 0;
+                        while (i < 7) {
+                            i = i + 1;
+                        }
+                        io.println(i);
+                    }
+                }
+                """, Map.of("profile", "true"));
+        TestUtils.noErrors(result.getReports());
+
+        var output = new JasminRunner().run(result, List.of(), null);
+
+        assertEquals("7", output.getStdOut().trim());
+        // The loop body runs 7 times and the report maps it to the line of the while
+        assertTrue(output.getStdErr(), output.getStdErr().matches("(?s).*\\s7\\s+\\S+%\\s+Count\\.jmm:6\\s+main __while__0\n.*"));
+        assertTrue(output.getStdErr(), output.getStdErr().matches("(?s).*\\s1\\s+main \\(Count\\.jmm:3\\)\n.*"));
+    }
+
+    @Test
+    public void testProfileUse() throws IOException {
+        var code = """
+                import io;
+                class Hot {
+                    public static void main(String[] args) {
+                        int a;
+                        int b;
+                        int i;
+                        a = 1;
+                        b = a + a;
+                        a = b + a;
+                        b = a + b;
+                        a = b + a;
+                        i = 0;
+                        while (i < 1000) {
+                            i = i + 1;
+                        }
+                        io.println(a + b + i);
+                    }
+                }
+                """;
+        var profile = Files.createTempFile("Hot", ".profile");
+
+        try {
+            var profiled = TestUtils.backend(code, Map.of("profile", "true", "profileFile", profile.toString()));
+            TestUtils.noErrors(profiled.getReports());
+            assertEquals("1013", new JasminRunner().run(profiled, List.of(), null).getStdOut().trim());
+
+            // Statically the loop counter is the least used variable, the profile shows it is the hottest
+            var unguided = TestUtils.backend(code, Map.of("registerAllocation", "0"));
+            var guided = TestUtils.backend(code, Map.of("registerAllocation", "0", "profileUse", profile.toString()));
+            TestUtils.noErrors(guided.getReports());
+
+            assertFalse(unguided.getJasminCode(), unguided.getJasminCode().contains("iinc 1 1"));
+            assertTrue(guided.getJasminCode(), guided.getJasminCode().contains("iinc 1 1"));
+            assertEquals("1013", new JasminRunner().run(guided).trim());
+
+            // A profile of other blocks is not used for them, and the compiler says so
+            Files.writeString(profile, Files.readString(profile).replaceAll("(?<=# fingerprint\tmain\t)\\w+", "0"));
+            var stale = TestUtils.backend(code, Map.of("registerAllocation", "0", "profileUse", profile.toString()));
+
+            assertEquals(unguided.getJasminCode(), stale.getJasminCode());
+            assertTrue(stale.getReports().stream().anyMatch(report -> report.getMessage().contains("does not match")));
+        } finally {
+            Files.delete(profile);
+        }
+    }
+
+    @Test
+    public void testBlockLayout() {
+        var result = TestUtils.backend("""
+                import io;
+                class Layout {
+                    public int sum(int n) {
+                        int i;
+                        int s;
+                        s = 0;
+                        for (i = 0; i < n; i++) {
+                            if (i < 5) {
+                                continue;
+                            } else {
+                                s = s + i;
+                            }
+                        }
+                        return s;
+                    }
+                    public static void main(String[] args) {
+                        io.println(new Layout().sum(10));
+                    }
+                }
+                """, Map.of("optimize", "true"));
+        TestUtils.noErrors(result.getReports());
+
+        // The continue jumps straight to the increment and the rest of the loop falls through
+        assertFalse(result.getJasminCode(), result.getJasminCode().contains("goto"));
+        assertEquals("35", new JasminRunner().run(result).trim());
+    }
+
+    @Test
+    public void testBlockLayoutNestedIf() {
+        var result = TestUtils.backend("""
+                import io;
+                class Layout {
+                    public int pick(int a, int b) {
+                        int r;
+                        if (a < 5) {
+                            if (b < 3) {
+                                r = 1;
+                            } else {
+                                r = 2;
+                            }
+                        } else {
+                            r = 3;
+                        }
+                        return r;
+                    }
+                    public static void main(String[] args) {
+                        Layout l;
+                        l = new Layout();
+                        io.println(l.pick(1, 1) * 100 + l.pick(1, 5) * 10 + l.pick(9, 1));
+                    }
+                }
+                """, Map.of("optimize", "true"));
+        TestUtils.noErrors(result.getReports());
+
+        // The inner else jumps past the outer else, straight to the end of the outer if
+        assertEquals("123", new JasminRunner().run(result).trim());
+    }
+
+    @Test
+    public void testBlockLayoutIfInLoop() {
+        var result = TestUtils.backend("""
+                import io;
+                class Layout {
+                    public int count(int n) {
+                        int i;
+                        int s;
+                        s = 0;
+                        i = 0;
+                        while (i < n) {
+                            if (i < 3) {
+                                if (i < 1) {
+                                    s = s + 100;
+                                } else {
+                                    s = s + 10;
+                                }
+                            } else {
+                                s = s + 1;
+                            }
+                            i = i + 1;
+                        }
+                        return s;
+                    }
+                    public static void main(String[] args) {
+                        io.println(new Layout().count(6));
+                    }
+                }
+                """, Map.of("optimize", "true"));
+        TestUtils.noErrors(result.getReports());
+
+        assertEquals("123", new JasminRunner().run(result).trim());
+    }
+
+    private static final String PARALLEL_CODE = """
+            import io;
+            class Parallel {
+                int[] values;
+                public int sum(int n) {
+                    int i;
+                    int s;
+                    s = 0;
+                    for (i = 0; i < n; i++) {
+                        s = s + i * i - (i + 1) / 2;
+                    }
+                    return s;
+                }
+                public int fill(int n) {
+                    int i;
+                    values = new int[n];
+                    i = 0;
+                    while (i < n) {
+                        values[i] = this.sum(i) + i * 3;
+                        i = i + 1;
+                    }
+                    return values[n - 1];
+                }
+                public boolean between(int a, int b, int c) {
+                    return a < b && b < c && !(c < a + b);
+                }
+                public int count(int n) {
+                    int c;
+                    c = 0;
+                    for (int x : values) {
+                        if (this.between(n, x, n * 10)) {
+                            c = c + 1;
+                        } else {
+                            c = c - (x / (n + 1));
+                        }
+                    }
+                    return c;
+                }
+                public static void main(String[] args) {
+                    Parallel p;
+                    p = new Parallel();
+                    io.println(p.fill(12));
+                    io.println(p.count(5));
+                }
+            }
+            """;
+
+    private static Map<String, String> parallelConfig(boolean parallel) {
+        // More threads than this machine may have, so that the methods are really spread over several
+        return Map.of("optimize", "true", "registerAllocation", "0", "parallel", String.valueOf(parallel), "parallelism", "4");
+    }
+
+    @Test
+    public void testParallelOllirMatchesSequential() {
+        var sequential = TestUtils.optimize(PARALLEL_CODE, parallelConfig(false));
+        TestUtils.noErrors(sequential.getReports());
+
+        // Temporaries and labels are numbered per method, so the members can be visited in any order
+        for (int i = 0; i < 5; i++) {
+            var parallel = TestUtils.optimize(PARALLEL_CODE, parallelConfig(true));
+            TestUtils.noErrors(parallel.getReports());
+            assertEquals(sequential.getOllirCode(), parallel.getOllirCode());
+        }
+    }
+
+    @Test
+    public void testParallelJasminMatchesSequential() {
+        var sequential = TestUtils.backend(PARALLEL_CODE, parallelConfig(false));
+        TestUtils.noErrors(sequential.getReports());
+
+        for (int i = 0; i < 5; i++) {
+            var parallel = TestUtils.backend(PARALLEL_CODE, parallelConfig(true));
+            TestUtils.noErrors(parallel.getReports());
+            assertEquals(sequential.getJasminCode(), parallel.getJasminCode());
+        }
+    }
+
     // @Test
     // public void testHelloWorld() {
 //
@@ -0,0 +1,161 @@
+package pt.up.fe.comp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
+import pt.up.fe.comp2023.CompilationCache;
+import pt.up.fe.comp2023.JasminRunner;
+import pt.up.fe.specs.util.SpecsIo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompilationCacheTest {
+
+    private static final String CODE = """
+            import io;
+            class Cached {
+                public static void main(String[] args) {
+                    io.println(42);
+                }
+            }
+            """;
+
+    private Path folder;
+
+    @Before
+    public void createFolder() throws IOException {
+        folder = Files.createTempDirectory("jmm-cache");
+    }
+
+    @After
+    public void deleteFolder() {
+        SpecsIo.deleteFolder(folder.toFile());
+    }
+
+    private static Map<String, String> config(String... entries) {
+        var config = new HashMap<String, String>();
+        config.put("optimize", "false");
+        config.put("registerAllocation", "-1");
+        config.put("inputFile", "Cached.jmm");
+
+        for (int i = 0; i < entries.length; i += 2)
+            config.put(entries[i], entries[i + 1]);
+
+        return config;
+    }
+
+    private static String key(CompilationCache cache, String code, Map<String, String> config) throws IOException {
+        return cache.key(code.getBytes(StandardCharsets.UTF_8), config);
+    }
+
+    private static JasminResult compile(String code) {
+        var result = TestUtils.backend(code);
+        TestUtils.noErrors(result.getReports());
+        return result;
+    }
+
+    @Test
+    public void testMissThenHit() throws IOException {
+        var cache = new CompilationCache(folder, CompilationCache.DEFAULT_MAX_SIZE);
+        var key = key(cache, CODE, config());
+
+        assertTrue(cache.get(key, config()).isEmpty());
+        cache.put(key, "", compile(CODE));
+
+        var cached = cache.get(key, config());
+        assertTrue(cached.isPresent());
+        assertEquals("42", new JasminRunner().run(cached.get()).trim());
+        assertEquals(new CompilationCache.Stats(1, 1), cache.getStats());
+    }
+
+    @Test
+    public void testChangesMiss() throws IOException {
+        var cache = new CompilationCache(folder, CompilationCache.DEFAULT_MAX_SIZE);
+        var key = key(cache, CODE, config());
+
+        assertNotEquals(key, key(cache, CODE.replace("42", "43"), config()));
+        assertNotEquals(key, key(cache, CODE, config("optimize", "true")));
+        assertNotEquals(key, key(cache, CODE, config("registerAllocation", "0")));
+        // The path is in the generated .source directive
+        assertNotEquals(key, key(cache, CODE, config("inputFile", "other/Cached.jmm")));
+        // Options that do not change the output share the entry
+        assertEquals(key, key(cache, CODE, config("debug", "true")));
+
+        cache.put(key, "", compile(CODE));
+        assertTrue(cache.get(key(cache, CODE, config("optimize", "true")), config()).isEmpty());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws IOException {
+        var unbounded = new CompilationCache(folder, CompilationCache.DEFAULT_MAX_SIZE);
+        var keys = new String[3];
+
+        for (int i = 0; i < keys.length; i++) {
+            var code = CODE.replace("42", String.valueOf(i));
+            keys[i] = key(unbounded, code, config());
+            unbounded.put(keys[i], "", compile(code));
+            Files.setLastModifiedTime(folder.resolve(keys[i]), FileTime.from(Instant.now().minusSeconds(60 - i)));
+        }
+
+        // The first entry is used again, so the second is now the least recently used
+        assertTrue(unbounded.get(keys[0], config()).isPresent());
+
+        // Room for the three entries that are kept, but not for a fourth
+        var size = entrySize(folder.resolve(keys[0]));
+        var bounded = new CompilationCache(folder, size * 3 + size / 2);
+        var code = CODE.replace("42", "3");
+        var key = key(bounded, code, config());
+        bounded.put(key, "", compile(code));
+
+        assertTrue(Files.isDirectory(folder.resolve(keys[0])));
+        assertFalse(Files.exists(folder.resolve(keys[1])));
+        assertTrue(Files.isDirectory(folder.resolve(keys[2])));
+        assertTrue(Files.isDirectory(folder.resolve(key)));
+    }
+
+    @Test
+    public void testWritesAreAtomic() throws IOException {
+        var cache = new CompilationCache(folder, CompilationCache.DEFAULT_MAX_SIZE);
+        var key = key(cache, CODE, config());
+
+        // A compiler that died while writing leaves a temporary folder, which is never read and is cleaned up once stale
+        var stale = Files.createDirectories(folder.resolve("tmp-stale"));
+        Files.writeString(stale.resolve("code.j"), "");
+        Files.setLastModifiedTime(stale, FileTime.from(Instant.now().minus(Duration.ofHours(2))));
+
+        cache.put(key, "", compile(CODE));
+        // A second compiler stores the same program, the entry it finds in place is kept
+        cache.put(key, "", compile(CODE));
+
+        assertTrue(cache.get(key, config()).isPresent());
+
+        try (var files = Files.list(folder)) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().startsWith("tmp-")));
+        }
+    }
+
+    private static long entrySize(Path entry) throws IOException {
+        try (var files = Files.list(entry)) {
+            long size = 0;
+
+            for (var file : files.toList())
+                size += Files.size(file);
+
+            return size;
+        }
+    }
+}
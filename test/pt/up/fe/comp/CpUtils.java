@@ -48,6 +48,7 @@ import org.specs.comp.ollir.Type;
 import pt.up.fe.comp.jmm.analysis.table.SymbolTable;
 import pt.up.fe.comp.jmm.jasmin.JasminResult;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp2023.JasminRunner;
 import pt.up.fe.specs.util.SpecsCollections;
 import pt.up.fe.specs.util.SpecsIo;
 import pt.up.fe.specs.util.SpecsStrings;
@@ -510,7 +511,7 @@ public class CpUtils {
 
     public static void runJasmin(JasminResult jasminResult, String expected) {
 		try {
-        var output = SpecsStrings.normalizeFileContents(jasminResult.run(), true);
+        var output = SpecsStrings.normalizeFileContents(new JasminRunner().run(jasminResult), true);
         assertEquals("Jasmin output", expected, output, jasminResult);
 		} catch(Exception e) {
 			throw new RuntimeException("Problems while running Jasmin code:\n" + jasminResult.getJasminCode(), e);
@@ -14,6 +14,18 @@
 package pt.up.fe.comp;
 
 import org.junit.Test;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp2023.IncrementalParser;
+import pt.up.fe.comp2023.SimpleParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class GrammarTest {
 
@@ -239,4 +251,80 @@ public class GrammarTest {
         TestUtils.parseVerbose("1 && 2 < 3 + 4 - 5 * 6 / 7", EXPRESSION);
     }
 
+    private static final String INCREMENTAL_CODE = "class Foo {\n    int a;\n    public int foo(int x) {\n        return x + 1;\n    }\n\n    public int bar() { return a; }\n}\n";
+
+    @Test
+    public void testIncrementalInsideMethod() {
+        testIncremental(new IncrementalParser.TextEdit(INCREMENTAL_CODE.indexOf("return x"), 0, "int y;\n        y = 2;\n        "), true);
+    }
+
+    @Test
+    public void testIncrementalSameLine() {
+        testIncremental(new IncrementalParser.TextEdit(INCREMENTAL_CODE.indexOf("return a"), "return a".length(), "return this.foo(a)"), true);
+    }
+
+    @Test
+    public void testIncrementalOutsideMethod() {
+        testIncremental(new IncrementalParser.TextEdit(INCREMENTAL_CODE.indexOf("int a"), "int a".length(), "boolean a"), false);
+    }
+
+    @Test
+    public void testIncrementalUnbalanced() {
+        // Removing the closing brace of the body makes the method swallow its sibling, so it needs a full parse
+        testIncremental(new IncrementalParser.TextEdit(INCREMENTAL_CODE.indexOf("}\n\n"), 1, ""), false);
+    }
+
+    @Test
+    public void testKeywordsInSyntaxErrors() {
+        // Keywords are quoted like the other literals, not shown by their token type
+        var expecting = syntaxErrors("class Foo { public void foo() { int a; a = 1 +; } }");
+        assertTrue(expecting, expecting.contains("mismatched input ';' expecting {"));
+        assertTrue(expecting, expecting.contains("'new', 'this', 'null'"));
+        assertFalse(expecting, expecting.contains("NEW"));
+
+        var missing = syntaxErrors("class Foo { public void foo() { int a; if (true) a = 1; a = 2; } }");
+        assertTrue(missing, missing.contains("missing 'else' at 'a'"));
+    }
+
+    private static String syntaxErrors(String code) {
+        var err = System.err;
+        var messages = new ByteArrayOutputStream();
+
+        try {
+            System.setErr(new PrintStream(messages, true));
+            new SimpleParser().parse(code, new HashMap<>());
+        } finally {
+            System.setErr(err);
+        }
+
+        return messages.toString();
+    }
+
+    private static void testIncremental(IncrementalParser.TextEdit edit, boolean spliced) {
+        var parser = new SimpleParser();
+        var previous = parser.parse(INCREMENTAL_CODE, new HashMap<>());
+
+        var incremental = new IncrementalParser().reparse(previous, INCREMENTAL_CODE, edit);
+        var full = parser.parse(edit.apply(INCREMENTAL_CODE), new HashMap<>());
+
+        assertEquals(full.getRootNode() == null, incremental.getRootNode() == null);
+        assertEquals(spliced, incremental.getRootNode() == previous.getRootNode());
+
+        if (full.getRootNode() != null)
+            assertSameTree(full.getRootNode(), incremental.getRootNode());
+    }
+
+    private static void assertSameTree(JmmNode expected, JmmNode actual) {
+        assertEquals(expected.getKind(), actual.getKind());
+        assertEquals(new HashSet<>(expected.getAttributes()), new HashSet<>(actual.getAttributes()));
+
+        for (var attribute : expected.getAttributes())
+            assertEquals(attribute + " of " + expected.getKind(), expected.getObject(attribute), actual.getObject(attribute));
+
+        assertEquals(expected.getNumChildren(), actual.getNumChildren());
+
+        for (int i = 0; i < expected.getNumChildren(); i++)
+            assertSameTree(expected.getJmmChild(i), actual.getJmmChild(i));
+    }
+
 }
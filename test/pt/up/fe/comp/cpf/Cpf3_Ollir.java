@@ -100,6 +100,23 @@ public class Cpf3_Ollir {
     }
 
 
+    /*checks if compound conditions are lowered to branches without boolean operations*/
+    @Test
+    public void section3_ControlFlow_Short_Circuit() {
+
+        var result = getOllirResult("control_flow/ShortCircuitIf.jmm");
+
+        var method = CpUtils.getMethod(result, "func");
+
+        var branches = CpUtils.assertInstExists(CondBranchInstruction.class, method, result);
+        CpUtils.assertTrue("Has at least 3 branches", branches.size() >= 3, result);
+
+        var booleanOps = CpUtils.getOllirNodes(method, node -> node instanceof BinaryOpInstruction binOp
+                && (binOp.getOperation().getOpType() == OperationType.ANDB || binOp.getOperation().getOpType() == OperationType.ORB));
+        CpUtils.assertTrue("Has no boolean operations", booleanOps.isEmpty(), result);
+    }
+
+
     /*checks if an array is correctly initialized*/
     @Test
     public void section4_Arrays_Init_Array() {
@@ -180,6 +180,22 @@ public class Cpf4_Jasmin {
         CpUtils.runJasmin(getJasminResult("control_flow/IfWhileNested.ollir"), "Result: 1\nResult: 2\nResult: 1");
     }
 
+    /*checks if the code of a foreach loop over an array visits every element in order */
+    @Test
+    public void section3_ControlFlow_ForEach() {
+        CpUtils.runJasmin(getJasminResult("control_flow/ForEachSum.ollir"),
+                "Result: 1\nResult: 3\nResult: 5\nResult: 7\nResult: 16");
+    }
+
+    /*checks if the index of a foreach loop is incremented with iinc */
+    @Test
+    public void section3_ControlFlow_ForEach_Iinc() {
+        var jasminResult = getJasminResult("control_flow/ForEachSum.ollir");
+        var methodCode = CpUtils.getJasminMethod(jasminResult, "sum");
+
+        CpUtils.matches(methodCode, "iinc\\s+\\w+\\s+1");
+    }
+
     /*checks if the code of a call to a function with multiple arguments (using boolean expressions in the call) is
     well executed*/
     @Test
@@ -49,6 +49,14 @@ public class Cpf5_Optimizations {
         return TestUtils.backend(SpecsIo.getResource("pt/up/fe/comp/cpf/5_optimizations/" + filename), config);
     }
 
+    /**
+     * Runs the program built with and without the -o flag, both must print the expected output
+     */
+    static void runWithAndWithoutOpt(String filename, String expected) {
+        CpUtils.runJasmin(getJasminResult(filename), expected);
+        CpUtils.runJasmin(getJasminResultOpt(filename), expected);
+    }
+
     /**
      * Test if small integers are loaded with iconst
      */
@@ -192,5 +200,68 @@ public class Cpf5_Optimizations {
         CpUtils.matches(optimized, "(bipush|sipush|ldc) 10\\s+imul");
     }
 
+    @Test
+    public void section4_LoopUnroll_Simple() {
+
+        String filename = "loop_unroll/UnrollSimple.jmm";
+
+        JasminResult original = getJasminResult(filename);
+        JasminResult optimized = getJasminResultOpt(filename);
+
+        CpUtils.assertNotEquals("Expected code to change with -o flag\n\nOriginal code:\n" + original.getJasminCode(),
+                original.getJasminCode(), optimized.getJasminCode(),
+                optimized);
+
+        String method = CpUtils.getJasminMethod(optimized, "foo");
+        CpUtils.assertTrue("Expected loop to be fully unrolled", !method.contains("goto"), optimized);
+        CpUtils.matches(optimized, "(bipush|sipush|ldc) 6\\s+ireturn");
+    }
+
+    @Test
+    public void section4_LoopUnroll_Remainder() {
+
+        String filename = "loop_unroll/UnrollRemainder.jmm";
+
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("unrollFactor", "4");
+
+        JasminResult original = getJasminResult(filename);
+        JasminResult optimized = TestUtils.backend(SpecsIo.getResource("pt/up/fe/comp/cpf/5_optimizations/" + filename), config);
+
+        // 30 iterations, too many to unroll fully: 7 of 4 iterations in the loop, ending at 28, and 2 after it
+        String method = CpUtils.getJasminMethod(optimized, "sum");
+        CpUtils.matches(method, "bipush 28\\s+if_icmplt");
+
+        String peeled = method.substring(method.lastIndexOf("if_icmplt"));
+        CpUtils.assertEquals("Expected 4 iterations in the loop and 2 peeled after it", 6, CpUtils.countOccurences(optimized, "iaload"), optimized);
+        CpUtils.assertEquals("Expected 2 iterations peeled after the loop", 2, peeled.split("iaload", -1).length - 1, optimized);
+
+        CpUtils.runJasmin(original, "8990");
+        CpUtils.runJasmin(optimized, "8990");
+    }
+
+    @Test
+    public void section5_Loops_ForWithoutTerminal() {
+        runWithAndWithoutOpt("loops/ForEver.jmm", "Result: 0\nResult: 1\nResult: 2");
+    }
 
+    @Test
+    public void section5_Loops_ContinueInFor() {
+        // The increment still runs, the loop ends
+        runWithAndWithoutOpt("loops/ForContinue.jmm", "Result: 2\nResult: 3\nResult: 4");
+    }
+
+    @Test
+    public void section5_Loops_ForTerminalMustBeBoolean() {
+        var code = SpecsIo.getResource("pt/up/fe/comp/cpf/5_optimizations/loops/ForTerminal.jmm");
+        TestUtils.mustFail(TestUtils.analyse(code));
+        TestUtils.mustFail(TestUtils.analyse(code, Map.of("optimize", "true")));
+    }
+
+    @Test
+    public void section5_Loops_ElseAfterJump() {
+        // The else of an if whose branch is a lone continue or return still runs
+        runWithAndWithoutOpt("loops/ElseAfterJump.jmm", "Result: 3\nResult: 4\nResult: -1\nResult: 1");
+    }
 }
@@ -0,0 +1,62 @@
+package utils;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
+import pt.up.fe.comp2023.JavammLexer;
+import pt.up.fe.specs.util.SpecsIo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures tokenization throughput over a corpus of .jmm files, for the first (cold DFA) pass and for warm passes.
+ * <p>
+ * Usage: LexerBenchmark [iterations] [folder...], defaults to 50 iterations over the test folder.
+ */
+public class LexerBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        var folders = args.length > 1 ? List.of(args).subList(1, args.length) : List.of("test");
+
+        var corpus = new ArrayList<String>();
+        for (var folder : folders)
+            for (var file : SpecsIo.getFilesRecursive(new File(folder), "jmm"))
+                corpus.add(SpecsIo.read(file));
+
+        var lexer = new JavammLexer(new ANTLRInputStream(""));
+
+        var start = System.nanoTime();
+        var tokens = run(lexer, corpus, 1);
+        var cold = System.nanoTime() - start;
+
+        System.out.printf("Corpus: %d files, %d tokens, %d iterations%n", corpus.size(), tokens, iterations);
+        System.out.printf("cold %10.3f ms%n", cold / 1e6);
+
+        // One more round to warm up the JIT before timing
+        run(lexer, corpus, iterations);
+        start = System.nanoTime();
+        tokens = run(lexer, corpus, iterations);
+        var warm = System.nanoTime() - start;
+
+        System.out.printf("warm %10.3f ms/iteration, %.0f tokens/s%n", warm / 1e6 / iterations, tokens / (warm / 1e9));
+        System.out.println("Lexer DFA states: " + lexer.getInterpreter().getDFA(Lexer.DEFAULT_MODE).states.size());
+    }
+
+    private static long run(JavammLexer lexer, List<String> corpus, int iterations) {
+        long tokens = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            for (var code : corpus) {
+                lexer.setInputStream(new ANTLRInputStream(code));
+
+                while (lexer.nextToken().getType() != Token.EOF)
+                    tokens++;
+            }
+        }
+
+        return tokens;
+    }
+}
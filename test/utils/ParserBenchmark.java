@@ -0,0 +1,54 @@
+package utils;
+
+import pt.up.fe.comp2023.ParserCache;
+import pt.up.fe.comp2023.SimpleParser;
+import pt.up.fe.specs.util.SpecsIo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compares the two-stage SLL/LL parser against plain LL parsing over a corpus of .jmm files.
+ * <p>
+ * Usage: ParserBenchmark [iterations] [folder...], defaults to 20 iterations over the test folder.
+ */
+public class ParserBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        var folders = args.length > 1 ? List.of(args).subList(1, args.length) : List.of("test");
+
+        var corpus = new ArrayList<String>();
+        for (var folder : folders)
+            for (var file : SpecsIo.getFilesRecursive(new File(folder), "jmm"))
+                corpus.add(SpecsIo.read(file));
+
+        System.out.println("Corpus: " + corpus.size() + " files, " + iterations + " iterations");
+
+        for (var mode : new String[]{"ll", "sll"}) {
+            // The first round only warms up the JIT and the ANTLR DFA
+            run(corpus, mode, iterations);
+            var time = run(corpus, mode, iterations);
+
+            System.out.printf("%-4s %10.3f ms/iteration%n", mode, time / 1e6 / iterations);
+        }
+
+        System.out.println(ParserCache.getInstance().getStats());
+    }
+
+    private static long run(List<String> corpus, String mode, int iterations) {
+        var parser = new SimpleParser();
+        var config = new HashMap<String, String>();
+        config.put("predictionMode", mode);
+
+        var start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++)
+            for (var code : corpus)
+                parser.parse(code, config);
+
+        return System.nanoTime() - start;
+    }
+}
@@ -3,6 +3,7 @@ package utils;
 import org.specs.comp.ollir.*;
 import pt.up.fe.comp.jmm.jasmin.JasminResult;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp2023.JasminRunner;
 import pt.up.fe.specs.util.SpecsIo;
 import pt.up.fe.specs.util.SpecsStrings;
 import pt.up.fe.specs.util.SpecsSystem;
@@ -317,7 +318,7 @@ public class ProjectTestUtils {
     }
 
     public static void runJasmin(JasminResult jasminResult, String expected) {
-        var output = SpecsStrings.normalizeFileContents(jasminResult.run(), true);
+        var output = SpecsStrings.normalizeFileContents(new JasminRunner().run(jasminResult), true);
 
         // No expected output, just run test
         if(expected == null) {